@@ -18,3 +18,11 @@ dependencies {
 tasks.getByName<Test>("test") {
     useJUnitPlatform()
 }
+
+tasks.register<JavaExec>("simulateAging") {
+    group = "verification"
+    description = "Ages a container with a seeded random workload and reports fragmentation and throughput"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("com.jetbrains.filesystem.simulator.AgingSimulator")
+    args = (findProperty("simulatorArgs") as String?)?.split(" ")?.filter { it.isNotBlank() } ?: emptyList()
+}
@@ -0,0 +1,45 @@
+package com.jetbrains.filesystem;
+
+import java.util.Arrays;
+
+class AppendBuffer {
+
+    private final long createdAt;
+    private byte[] bytes;
+    private int size;
+
+    AppendBuffer(final int capacity) {
+        this.createdAt = System.currentTimeMillis();
+        this.bytes = new byte[capacity];
+    }
+
+    void append(final byte[] contents) {
+
+        if (size + contents.length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + contents.length));
+        }
+
+        System.arraycopy(contents, 0, bytes, size, contents.length);
+        size += contents.length;
+    }
+
+    void copyTo(final byte[] destination, final int offset) {
+        System.arraycopy(bytes, 0, destination, offset, size);
+    }
+
+    void copyTo(final int from, final byte[] destination, final int offset, final int length) {
+        System.arraycopy(bytes, from, destination, offset, length);
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+
+    int size() {
+        return size;
+    }
+
+    long getCreatedAt() {
+        return createdAt;
+    }
+}
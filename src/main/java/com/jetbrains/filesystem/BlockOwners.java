@@ -0,0 +1,129 @@
+package com.jetbrains.filesystem;
+
+import com.jetbrains.filesystem.nodes.FileNode;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+
+public class BlockOwners implements Serializable {
+
+    private static final int MAX_BLOCKS = Integer.MAX_VALUE - 8;
+
+    private transient FileNode[] owners;
+    private transient long[] generations;
+    private transient int[] checksums;
+    private final BitSet checksummed;
+    private transient int size;
+    private transient long lastBlock;
+
+    public BlockOwners() {
+        this.owners = new FileNode[16];
+        this.generations = new long[16];
+        this.checksums = new int[16];
+        this.checksummed = new BitSet();
+        this.lastBlock = -1;
+    }
+
+    public FileNode get(final long block) {
+        return block >= 0 && block < owners.length ? owners[(int) block] : null;
+    }
+
+    public void put(final long block, final FileNode file) {
+
+        ensureCapacity(block);
+
+        if (owners[(int) block] == null) size++;
+        if (owners[(int) block] != null && owners[(int) block] != file) checksummed.clear((int) block);
+        owners[(int) block] = file;
+        lastBlock = Math.max(lastBlock, block);
+    }
+
+    public long getGeneration(final long block) {
+        return block >= 0 && block < generations.length ? generations[(int) block] : 0;
+    }
+
+    public void setGeneration(final long block, final long generation) {
+        ensureCapacity(block);
+        generations[(int) block] = generation;
+    }
+
+    public boolean hasChecksum(final long block) {
+        return block >= 0 && block < owners.length && checksummed.get((int) block);
+    }
+
+    public int getChecksum(final long block) {
+        return checksums[(int) block];
+    }
+
+    public void setChecksum(final long block, final int checksum) {
+        ensureCapacity(block);
+        checksums[(int) block] = checksum;
+        checksummed.set((int) block);
+    }
+
+    public void clearChecksum(final long block) {
+        if (block >= 0 && block < owners.length) checksummed.clear((int) block);
+    }
+
+    private void ensureCapacity(final long block) {
+
+        if (block < 0 || block >= MAX_BLOCKS) throw new RuntimeException("Block " + block + " is out of range");
+        if (block < owners.length) return;
+
+        final int capacity = (int) Math.min(MAX_BLOCKS, Math.max(block + 1, owners.length * 2L));
+        owners = Arrays.copyOf(owners, capacity);
+        generations = Arrays.copyOf(generations, capacity);
+        checksums = Arrays.copyOf(checksums, capacity);
+    }
+
+    public void remove(final long block) {
+
+        if (get(block) == null) return;
+
+        owners[(int) block] = null;
+        checksummed.clear((int) block);
+        size--;
+
+        while (lastBlock >= 0 && owners[(int) lastBlock] == null) lastBlock--;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long lastBlock() {
+        return lastBlock;
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeLong(lastBlock);
+        for (int i = 0; i <= lastBlock; i++) {
+            out.writeObject(owners[i]);
+            out.writeLong(generations[i]);
+            out.writeInt(checksums[i]);
+        }
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        lastBlock = in.readLong();
+        owners = new FileNode[(int) Math.max(16, lastBlock + 1)];
+        generations = new long[owners.length];
+        checksums = new int[owners.length];
+        for (int i = 0; i <= lastBlock; i++) {
+            owners[i] = (FileNode) in.readObject();
+            generations[i] = in.readLong();
+            checksums[i] = in.readInt();
+            if (owners[i] != null) size++;
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.jetbrains.filesystem;
+
+public enum Durability {
+    NONE,
+    PERIODIC,
+    COMMIT
+}
@@ -1,243 +1,2154 @@
 package com.jetbrains.filesystem;
 
+import com.jetbrains.filesystem.nodes.BlockList;
 import com.jetbrains.filesystem.nodes.DirectoryNode;
 import com.jetbrains.filesystem.nodes.FileNode;
-import com.jetbrains.filesystem.utils.ObjectSerializer;
-
+import com.jetbrains.filesystem.nodes.FileSystemNode;
+import com.jetbrains.filesystem.nodes.NameIndex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
 
 public class FileHandler implements AutoCloseable {
 
     private static final int HEADER_SIZE = 4096;
-    private static final int BLOCK_SIZE = 4096;
+    static final int BLOCK_SIZE = 4096;
+    private static final int FORMAT_MAGIC = 0x4A424653;
+    private static final int FORMAT_VERSION = 1;
+    private static final int SERIALIZED_HEADER_MAGIC = 0xACED0005;
+    private static final int SUPERBLOCK_OFFSET = 2 * Integer.BYTES;
+    private static final int GENERATION_OFFSET = SUPERBLOCK_OFFSET + Integer.BYTES;
+    private static final int DURABLE_SUPERBLOCK_OFFSET = HEADER_SIZE / 2;
+    private static final int SET_ID_OFFSET = HEADER_SIZE / 4;
+    private static final int TABLE_PAGE_ENTRIES = (BLOCK_SIZE - Long.BYTES - Integer.BYTES) / Long.BYTES;
+    private static final long NO_PAGE = -1;
+    private static final long MIN_JOURNAL_SIZE = 1 << 20;
+    private static final int MAPPING_SIZE = 1 << 30;
+    private static final long HEADER_READ_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long MAX_HEADER_READ_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int TRANSFER_CHUNK_BLOCKS = 256;
+    private static final int PREFETCH_CHUNK_SIZE = 256 * 1024;
+    private static final int MAX_COALESCED_BLOCKS = 64;
+    private static final int DELTA_MAGIC = 0x46534454;
+    private static final byte[] EMPTY_BLOCK = new byte[BLOCK_SIZE];
+    private static final ThreadLocal<byte[]> SCRATCH_BLOCK = ThreadLocal.withInitial(() -> new byte[BLOCK_SIZE]);
+    private static final int VERIFIED_BLOCKS = 256;
     private final byte[] headerBlock;
     private final byte[] bytes;
-    private final String fileName;
-    private final RandomAccessFile containerFile;
-    private final FileHeader header;
-
-    public FileHandler(final String fileName) throws Exception {
-        this.fileName = fileName;
-        this.containerFile = new RandomAccessFile(fileName, "rw");
+    private final byte[] checksumBlock;
+    private final VerifiedBlocks verifiedBlocks;
+    private final String[] fileNames;
+    private final RandomAccessFile[] containerFiles;
+    private final long[] memberSizes;
+    private final MappedByteBuffer[][] mappings;
+    private FileHeader header;
+    private long generation;
+    private long metadataSize;
+    private long checkpointSize;
+    private long durableGeneration;
+    private boolean checkpointNeeded;
+    private boolean metadataTableMoved;
+    private MetadataLog metadataLog;
+    private final FileSystemOptions options;
+    private final Map<FileNode, AppendBuffer> appendBuffers;
+    private ExecutorService prefetcher;
+    private int pinCount;
+    private boolean closed;
+
+    public FileHandler(final String fileName, final FileSystemOptions options) throws Exception {
+        this.options = options;
+        this.appendBuffers = new HashMap<>();
         this.headerBlock = new byte[HEADER_SIZE];
         this.bytes = new byte[BLOCK_SIZE];
+        this.checksumBlock = new byte[BLOCK_SIZE];
+        this.verifiedBlocks = new VerifiedBlocks(VERIFIED_BLOCKS);
+        this.metadataLog = new MetadataLog();
+
+        final List<String> stripeMembers = options.getStripeMembers();
+        this.fileNames = new String[stripeMembers.size() + 1];
+        this.containerFiles = new RandomAccessFile[fileNames.length];
+        this.memberSizes = new long[fileNames.length];
+        this.mappings = new MappedByteBuffer[fileNames.length][];
+
+        fileNames[0] = fileName;
+        for (int i = 1; i < fileNames.length; i++) {
+            fileNames[i] = stripeMembers.get(i - 1);
+        }
+        for (int i = 0; i < fileNames.length; i++) {
+            containerFiles[i] = new RandomAccessFile(fileNames[i], options.isReadOnly() ? "r" : "rw");
+        }
+        readMemberSizes();
+
+        final boolean isNew = containerFiles[0].length() == 0;
+        if (isNew && options.isReadOnly()) throw new RuntimeException(fileName + " is empty");
+        if (options.isReadOnly()) mapContainerFiles();
+
         this.header = open();
+        if (isNew) {
+            flushHeaders();
+            if (options.getDurability() != Durability.NONE) sync();
+            writeDurableState(prepareDurableState());
+        }
+        if (!options.isReadOnly()) releaseDeferredBlocks();
     }
 
     protected DirectoryNode getRoot() {
         return header.getRoot();
     }
 
+    protected NameIndex getNameIndex() {
+        return header.getNameIndex();
+    }
+
+    public void addNode(final DirectoryNode directory, final FileSystemNode node) {
+        directory.add(node);
+        header.getNameIndex().add(node);
+        metadataLog.nodeChanged(node);
+    }
+
+    public void removeNode(final DirectoryNode directory, final FileSystemNode node) {
+        directory.remove(node.getName());
+        header.getNameIndex().remove(node);
+        metadataLog.nodeRemoved(node);
+    }
+
+    public void setGrowthHint(final FileNode file, final long growthHint) {
+        file.setGrowthHint(growthHint);
+        changed(file);
+    }
+
     public FileHeader open() throws Exception {
 
-        if (containerFile.length() == 0) {
+        if (containerFiles[0].length() == 0) {
 
-            final FileHeader fileHeader = new FileHeader(new DirectoryNode(""));
+            final UUID setId = UUID.randomUUID();
+            for (int i = 0; i < containerFiles.length; i++) {
+                if (containerFiles[i].length() != 0) throw new RuntimeException(fileNames[i] + " is not empty");
 
-            flushHeaders();
+                containerFiles[i].setLength(HEADER_SIZE);
+                containerFiles[i].seek(SET_ID_OFFSET);
+                containerFiles[i].writeLong(setId.getMostSignificantBits());
+                containerFiles[i].writeLong(setId.getLeastSignificantBits());
+
+                containerFiles[i].seek(0);
+                containerFiles[i].writeInt(FORMAT_MAGIC);
+                containerFiles[i].writeInt(FORMAT_VERSION);
+                if (i == 0) continue;
+
+                containerFiles[i].writeInt(i);
+                containerFiles[i].writeInt(containerFiles.length);
+            }
+            readMemberSizes();
+            checkpointNeeded = true;
 
-            return fileHeader;
+            return new FileHeader(new DirectoryNode(""));
         } else {
-            containerFile.seek(0);
-            final int read = containerFile.read(headerBlock);
-            if (read != HEADER_SIZE) throw new RuntimeException("Something went wrong with the file size");
+            checkFormat(0);
+            checkStripeMember(0, containerFiles[0].readInt());
+            final UUID setId = readSetId(0);
+            for (int i = 1; i < containerFiles.length; i++) {
+                checkFormat(i);
+                if (containerFiles[i].readInt() != i) throw new RuntimeException(fileNames[i] + " is not member " + i);
+                checkStripeMember(i, containerFiles[i].readInt());
+                if (!readSetId(i).equals(setId))
+                    throw new RuntimeException(fileNames[i] + " belongs to another set of container files");
+            }
 
-            return ObjectSerializer.deserializeObject(headerBlock, FileHeader.class);
+            return readHeader();
         }
     }
 
-    public void flushHeaders() throws IOException {
+    private FileHeader readHeader() throws Exception {
+
+        final long deadline = System.nanoTime() + HEADER_READ_TIMEOUT_NANOS;
+        long backoff = TimeUnit.MICROSECONDS.toNanos(50);
+
+        while (true) {
 
-        final byte[] headerBytes = ObjectSerializer.serializeObject(header);
+            final ByteBuffer headerBuffer = ByteBuffer.wrap(headerBlock);
+            while (headerBuffer.hasRemaining()) {
+                if (onMember(0, channel -> channel.read(headerBuffer, headerBuffer.position())) < 0)
+                    throw new RuntimeException("Something went wrong with the file size");
+            }
+
+            final ByteBuffer superBlock =
+                    ByteBuffer.wrap(headerBlock, SUPERBLOCK_OFFSET, HEADER_SIZE - SUPERBLOCK_OFFSET);
+            superBlock.getInt();
+            final long headerGeneration = superBlock.getLong();
+            final long headerCheckpointSize = superBlock.getLong();
+            final long logSize = superBlock.getLong();
+            final long firstTablePage = superBlock.getLong();
+
+            if (!options.isReadOnly()) return readDurableHeader(headerGeneration);
+
+            if (headerGeneration % 2 == 0) {
+                try {
+                    final FileHeader readHeader = readMetadata(firstTablePage, logSize);
+                    if (readGeneration() == headerGeneration) {
+                        generation = headerGeneration;
+                        metadataSize = logSize;
+                        checkpointSize = headerCheckpointSize;
+                        return readHeader;
+                    }
+                } catch (EOFException e) {
+                    mapContainerFiles();
+                } catch (IOException | RuntimeException e) {
+                    // The pages of a log that the writer has replaced can be reused, so they only count as corrupted
+                    // if the generation did not change meanwhile
+                    if (readGeneration() == headerGeneration) throw e;
+                }
+            }
 
-        if (headerBytes.length > HEADER_SIZE)
-            throw new RuntimeException("Header is larger than the allocated size of " + HEADER_SIZE);
+            // The writer is in the middle of a flush, wait for it with an increasing back-off
+            if (System.nanoTime() + backoff > deadline)
+                throw new RuntimeException("Could not read a consistent header from " + fileNames[0]);
+            if (Thread.currentThread().isInterrupted())
+                throw new InterruptedIOException("Interrupted while reading the header of " + fileNames[0]);
 
-        containerFile.seek(0);
-        containerFile.write(headerBytes);
-        containerFile.seek(HEADER_SIZE - 1);
-        containerFile.write(0);
+            LockSupport.parkNanos(backoff);
+            backoff = Math.min(MAX_HEADER_READ_BACKOFF_NANOS, backoff * 2);
+        }
     }
 
-    private void moveFilePointerToBlock(final long block, final int offset) throws IOException {
-        containerFile.seek(HEADER_SIZE + block * BLOCK_SIZE + offset);
+    // The writer starts from the superblock that was written after its log and data were forced, as the superblock
+    // that the readers use may refer to pages that never reached the disk
+    private FileHeader readDurableHeader(final long headerGeneration) throws IOException {
+
+        final ByteBuffer superBlock = ByteBuffer.wrap(headerBlock, DURABLE_SUPERBLOCK_OFFSET, 4 * Long.BYTES);
+        durableGeneration = superBlock.getLong();
+        checkpointSize = superBlock.getLong();
+        metadataSize = superBlock.getLong();
+        final FileHeader readHeader = readMetadata(superBlock.getLong(), metadataSize);
+
+        // A writer that stopped in the middle of a flush leaves an odd generation, which readers would wait for
+        // forever; a lost flush moves the generation on, so that the readers of it refresh
+        generation = headerGeneration + headerGeneration % 2;
+        if (durableGeneration != headerGeneration) generation += 2;
+        if (generation != headerGeneration) {
+            writeSuperBlock(generation, checkpointSize, metadataSize, readHeader.getMetadataTable());
+            writeDurableSuperBlock(generation, checkpointSize, metadataSize, readHeader.getMetadataTable().get(0));
+        }
+
+        return readHeader;
     }
 
-    public void deleteContainerFile() {
-        final File f = new File(fileName);
-        if (!f.delete()) throw new RuntimeException("Could not delete the container file");
+    private FileHeader readMetadata(final long firstTablePage, final long logSize) throws IOException {
+
+        final long blockCount = getNextAvailableBlockNumber();
+        final long pageCount = (logSize + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        final BlockList pages = new BlockList();
+        final BlockList tablePages = new BlockList();
+        final byte[] table = new byte[BLOCK_SIZE];
+
+        for (long tablePage = firstTablePage; pages.size() < pageCount; ) {
+
+            if (tablePage < 0 || tablePage >= blockCount) {
+                throw new IOException("The metadata table refers to the block " + tablePage + " outside of "
+                        + fileNames[0]);
+            }
+
+            readFromBlock(tablePage, 0, table, 0, BLOCK_SIZE);
+            tablePages.add(tablePage);
+
+            final ByteBuffer entries = ByteBuffer.wrap(table);
+            final long nextTablePage = entries.getLong();
+            final int entryCount = entries.getInt();
+            if (entryCount <= 0 || entryCount > TABLE_PAGE_ENTRIES)
+                throw new IOException("The metadata table page " + tablePage + " is corrupted");
+
+            for (int i = 0; i < entryCount && pages.size() < pageCount; i++) {
+                pages.add(entries.getLong());
+            }
+            tablePage = nextTablePage;
+        }
+
+        final DataInputStream log = new DataInputStream(new PageInputStream(pages, logSize));
+        return metadataLog.read(log, pages, tablePages, blockCount);
     }
 
-    @Override
-    public void close() throws Exception {
-        containerFile.close();
+    private long readGeneration() {
+        return mappings[0][0].getLong(GENERATION_OFFSET);
     }
 
-    public void writeToFile(final FileNode file, final byte[] contents) throws IOException {
+    public long getGeneration() {
+        return generation;
+    }
 
-        final List<Long> blocks = file.getBlocks();
-        if (!blocks.isEmpty()) {
-            header.getFreeBlocks().addAll(blocks);
-            blocks.forEach(header.getUsedBlocks()::remove);
-            blocks.clear();
+    // The delta holds the log transactions published after the generation, or the whole log if it was checkpointed
+    // since, and the data blocks written after the generation
+    public void exportChanges(final long sinceGeneration, final OutputStream output) throws IOException {
+
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        final BlockList loggedBlocks = new BlockList();
+        final boolean complete = MetadataLog.copyTransactions(readLog(), sinceGeneration,
+                new DataOutputStream(records), loggedBlocks);
+
+        final BlockOwners usedBlocks = header.getUsedBlocks();
+        final long[] changedBlocks = loggedBlocks.allocatedBlocks().sorted().distinct().filter(block -> {
+            final FileNode owner = usedBlocks.get(block);
+            return owner != null && owner != header.getMetadata() && usedBlocks.getGeneration(block) > sinceGeneration;
+        }).toArray();
+
+        final DataOutputStream delta = new DataOutputStream(new BufferedOutputStream(output));
+        delta.writeInt(DELTA_MAGIC);
+        delta.writeLong(sinceGeneration);
+        delta.writeLong(generation);
+        delta.writeLong(getNextAvailableBlockNumber());
+        delta.writeBoolean(complete);
+        delta.writeInt(records.size());
+        records.writeTo(delta);
+        delta.writeInt(changedBlocks.length);
+
+        final byte[] block = new byte[BLOCK_SIZE];
+        for (final long changedBlock : changedBlocks) {
+            readStoredBlock(changedBlock, block, 0);
+            verify(changedBlock, block, 0);
+
+            delta.writeLong(changedBlock);
+            delta.write(block);
         }
 
-        blocks.addAll(writeToContainerFile(contents));
-        blocks.forEach(block -> header.getUsedBlocks().put(block, file));
+        delta.flush();
+    }
 
-        file.updateSize(contents.length);
+    private DataInputStream readLog() {
+        return new DataInputStream(new PageInputStream(header.getMetadata().getBlocks(), metadataSize));
+    }
+
+    private int getStoredLength(final long block) {
+        final long end = getMemberSize((int) (block % containerFiles.length));
+        return (int) Math.max(0, Math.min(BLOCK_SIZE, end - getPosition(block, 0)));
     }
 
-    private List<Long> writeToContainerFile(final byte[] contents) throws IOException {
+    // The replica continues its log with the transactions of the source, so its nodes keep the ids that the next
+    // delta refers to; the log is read before the blocks of the delta overwrite its pages
+    public void applyChanges(final InputStream input) throws Exception {
 
-        final List<Long> blocks = new ArrayList<>(contents.length / BLOCK_SIZE + 1);
+        if (options.isReadOnly()) throw new RuntimeException("The container file is opened read-only");
 
-        for (int i = 0; i < contents.length / BLOCK_SIZE; i++) {
+        final DataInputStream delta = new DataInputStream(new BufferedInputStream(input));
+        if (delta.readInt() != DELTA_MAGIC) throw new RuntimeException("The input is not a container delta");
 
-            final long freeBlock = getFreeBlock();
-            blocks.add(freeBlock);
-            moveFilePointerToBlock(freeBlock, 0);
-            containerFile.write(contents, i * BLOCK_SIZE, BLOCK_SIZE);
+        final long sinceGeneration = delta.readLong();
+        final long deltaGeneration = delta.readLong();
+        if (sinceGeneration != 0 && sinceGeneration != generation) {
+            throw new RuntimeException("The delta starts at generation " + sinceGeneration
+                    + " but the container is at generation " + generation);
         }
 
-        final int bytesLeft = contents.length % BLOCK_SIZE;
+        final long blockCount = delta.readLong();
+        final boolean complete = delta.readBoolean();
+        final byte[] records = new byte[delta.readInt()];
+        delta.readFully(records);
 
-        if (bytesLeft == 0) return blocks;
+        final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        if (!complete) readLog().transferTo(log);
+        log.write(records);
+        final byte[] replicatedLog = log.toByteArray();
 
-        final long freeBlock = getFreeBlock();
-        blocks.add(freeBlock);
-        moveFilePointerToBlock(freeBlock, 0);
-        containerFile.write(contents, contents.length - bytesLeft, bytesLeft);
+        final MetadataLog replicatedMetadataLog = new MetadataLog();
+        final FileHeader replicatedHeader = replicatedMetadataLog.read(
+                new DataInputStream(new ByteArrayInputStream(replicatedLog)), new BlockList(), new BlockList(),
+                blockCount);
+
+        extendToBlockCount(blockCount);
+
+        final byte[] block = new byte[BLOCK_SIZE];
+        for (int i = delta.readInt(); i > 0; i--) {
+            final long blockNumber = delta.readLong();
+            if (blockNumber < 0 || blockNumber >= blockCount)
+                throw new IOException("The delta refers to the block " + blockNumber + " outside of the container");
+
+            delta.readFully(block);
+            writeFully(getMember(blockNumber), ByteBuffer.wrap(block), getPosition(blockNumber, 0));
+        }
+
+        setBlockCount(blockCount);
+        appendBuffers.clear();
+        verifiedBlocks.clear();
 
-        return blocks;
+        header = replicatedHeader;
+        metadataLog = replicatedMetadataLog;
+        generation = deltaGeneration - 2;
+        resetDurableGeneration(generation);
+        flushHeaders(replicatedLog);
     }
 
-    private long getFreeBlock() throws IOException {
-        if (!header.getFreeBlocks().isEmpty()) {
-            return header.getFreeBlocks().remove();
+    public boolean refresh() throws Exception {
+
+        if (!options.isReadOnly()) throw new RuntimeException("Only read-only file systems can be refreshed");
+
+        if (readGeneration() == generation) return false;
+
+        final MappedByteBuffer[][] previousMappings = mappings.clone();
+        final long previousGeneration = generation;
+        final long previousMetadataSize = metadataSize;
+        try {
+            mapContainerFiles();
+            header = readHeader();
+            verifiedBlocks.clear();
+        } catch (Exception e) {
+            System.arraycopy(previousMappings, 0, mappings, 0, mappings.length);
+            generation = previousGeneration;
+            metadataSize = previousMetadataSize;
+            throw e;
+        }
+
+        return true;
+    }
+
+    private void mapContainerFiles() throws IOException {
+
+        readMemberSizes();
+        for (int i = 0; i < containerFiles.length; i++) {
+
+            final long length = getMemberSize(i);
+
+            mappings[i] = new MappedByteBuffer[(int) ((length + MAPPING_SIZE - 1) / MAPPING_SIZE)];
+            for (int j = 0; j < mappings[i].length; j++) {
+                final long position = (long) j * MAPPING_SIZE;
+                final long size = Math.min(MAPPING_SIZE, length - position);
+                mappings[i][j] = onMember(i, channel -> channel.map(FileChannel.MapMode.READ_ONLY, position, size));
+            }
+        }
+    }
+
+    // Every container file starts with the magic number and the format version; the files written before the format
+    // was versioned cannot be told apart from a damaged header, except for the oldest ones that start with the Java
+    // serialization of the whole header
+    private void checkFormat(final int member) throws IOException {
+
+        if (containerFiles[member].length() < HEADER_SIZE)
+            throw new RuntimeException(fileNames[member] + " is too short to be a container file");
+
+        containerFiles[member].seek(0);
+        final int magic = containerFiles[member].readInt();
+        if (magic == SERIALIZED_HEADER_MAGIC) {
+            throw new RuntimeException(fileNames[member] + " was written by a version that serialized the whole header"
+                    + " and cannot be opened; export its files with that version and import them");
+        }
+        if (magic != FORMAT_MAGIC)
+            throw new RuntimeException(fileNames[member] + " is not a container file or has an unversioned format");
+
+        final int version = containerFiles[member].readInt();
+        if (version != FORMAT_VERSION) {
+            throw new RuntimeException(fileNames[member] + " has the format version " + version
+                    + " but only version " + FORMAT_VERSION + " can be opened");
+        }
+    }
+
+    private UUID readSetId(final int member) throws IOException {
+        containerFiles[member].seek(SET_ID_OFFSET);
+        return new UUID(containerFiles[member].readLong(), containerFiles[member].readLong());
+    }
+
+    private void checkStripeMember(final int member, final int memberCount) {
+        if (memberCount != containerFiles.length)
+            throw new RuntimeException(fileNames[member] + " belongs to a set of " + memberCount + " container files");
+    }
+
+    public void flushHeaders() throws IOException {
+        flushHeaders(null);
+    }
+
+    private void flushHeaders(final byte[] replicatedLog) throws IOException {
+
+        if (options.isReadOnly()) throw new RuntimeException("The container file is opened read-only");
+
+        // Readers see an odd generation while the pages are rewritten, the even one is only kept on success
+        writeGeneration(generation + 1);
+
+        boolean published = false;
+        try {
+            writeHeader(replicatedLog);
+            published = true;
+        } finally {
+            if (!published) writeGeneration(generation);
+        }
+
+        publishReleasedBlocks();
+    }
+
+    // The published header no longer refers to the released blocks, but the durable superblock may still do until
+    // the next sync
+    private void publishReleasedBlocks() throws IOException {
+
+        final FreeBlocks releasedBlocks = header.getReleasedBlocks();
+        if (releasedBlocks.isEmpty()) return;
+
+        final boolean durable = options.getDurability() == Durability.NONE;
+
+        // A pinned block may still be read by a transfer that runs outside the file system lock
+        final FreeBlocks freeBlocks = !durable ? header.getUnsyncedBlocks()
+                : pinCount > 0 ? header.getDeferredFreeBlocks() : header.getFreeBlocks();
+        releasedBlocks.stream().forEach(freeBlocks::add);
+        releasedBlocks.removeFrom(0);
+
+        if (durable) trimFreeBlocks();
+    }
+
+    public boolean isCurrent() {
+        return !options.isReadOnly() || readGeneration() == generation;
+    }
+
+    // The log is checkpointed once the transactions appended to it outgrow the checkpoint, so replaying it on open
+    // costs at most twice as much as reading a checkpoint; a replicated log is written as it is, as a checkpoint
+    private void writeHeader(final byte[] replicatedLog) throws IOException {
+
+        if (replicatedLog != null) {
+            writeCheckpoint(out -> out.write(replicatedLog));
+        } else if (checkpointNeeded || metadataSize - checkpointSize > Math.max(checkpointSize, MIN_JOURNAL_SIZE)) {
+            writeCheckpoint(out -> metadataLog.writeCheckpoint(header, generation + 2, out));
         } else {
-            return getNextAvailableBlockNumber();
+            appendChanges();
         }
+
+        metadataLog.persisted();
+        generation += 2;
     }
 
-    private long getNextAvailableBlockNumber() throws IOException {
-        return (long) Math.ceil((containerFile.length() - HEADER_SIZE) / (double) BLOCK_SIZE);
+    private void appendChanges() throws IOException {
+
+        final BlockList pages = header.getMetadata().getBlocks();
+        final int publishedPages = (int) ((metadataSize + BLOCK_SIZE - 1) / BLOCK_SIZE);
+
+        long logSize = metadataSize;
+        if (metadataLog.hasChanges()) {
+            final PageOutputStream output = new PageOutputStream(pages, metadataSize);
+            final DataOutputStream out = new DataOutputStream(output);
+            metadataLog.writeChanges(header, generation + 2, out);
+            out.flush();
+            logSize = output.getPosition();
+        }
+
+        if (metadataTableMoved) {
+            writeMetadataTable(pages, header.getMetadataTable(), 0);
+        } else if (pages.size() > publishedPages) {
+            writeMetadataTable(pages, header.getMetadataTable(), publishedPages);
+        }
+
+        writeSuperBlock(generation + 2, checkpointSize, logSize, header.getMetadataTable());
+        metadataTableMoved = false;
+        metadataSize = logSize;
     }
 
-    public void appendToFile(final FileNode file, final byte[] contents) throws IOException {
+    // The checkpoint is written to new pages, the previous log stays intact until the superblock points to the new one
+    private void writeCheckpoint(final IOConsumer<DataOutputStream> checkpoint) throws IOException {
+
+        checkpointNeeded = true;
+
+        final BlockList newPages = new BlockList();
+        final BlockList newTablePages = new BlockList();
+        boolean published = false;
+        try {
+            final PageOutputStream output = new PageOutputStream(newPages, 0);
+            final DataOutputStream out = new DataOutputStream(output);
+            checkpoint.accept(out);
+            out.flush();
+
+            writeMetadataTable(newPages, newTablePages, 0);
+            writeSuperBlock(generation + 2, output.getPosition(), output.getPosition(), newTablePages);
+            published = true;
+
+            checkpointSize = output.getPosition();
+            metadataSize = checkpointSize;
+        } finally {
+            if (!published) {
+                releaseMetadataPages(newPages);
+                releaseMetadataPages(newTablePages);
+            }
+        }
+
+        replaceMetadataPages(header.getMetadata().getBlocks(), newPages);
+        replaceMetadataPages(header.getMetadataTable(), newTablePages);
+        checkpointNeeded = false;
+        metadataTableMoved = false;
+    }
+
+    private void replaceMetadataPages(final BlockList pages, final BlockList newPages) {
+        releaseMetadataPages(pages);
+        newPages.allocatedBlocks().forEach(pages::add);
+    }
+
+    private void releaseMetadataPages(final BlockList pages) {
+        pages.allocatedBlocks().forEach(this::releaseBlock);
+        pages.clear();
+    }
+
+    // Every table page holds the next table page and the numbers of up to TABLE_PAGE_ENTRIES log pages
+    private void writeMetadataTable(final BlockList pages, final BlockList tablePages, final int firstChangedPage)
+            throws IOException {
+
+        final int tablePageCount = (pages.size() + TABLE_PAGE_ENTRIES - 1) / TABLE_PAGE_ENTRIES;
+
+        int firstTablePage = firstChangedPage / TABLE_PAGE_ENTRIES;
+        if (tablePages.size() < tablePageCount) firstTablePage = Math.min(firstTablePage, tablePages.size() - 1);
+        while (tablePages.size() < tablePageCount) tablePages.add(allocateMetadataPage());
+
+        final byte[] table = new byte[BLOCK_SIZE];
+        for (int i = Math.max(0, firstTablePage); i < tablePageCount; i++) {
+
+            final ByteBuffer entries = ByteBuffer.wrap(table);
+            entries.putLong(i + 1 < tablePageCount ? tablePages.get(i + 1) : NO_PAGE);
 
-        final List<Long> blocks = file.getBlocks();
+            final int firstEntry = i * TABLE_PAGE_ENTRIES;
+            final int entryCount = Math.min(TABLE_PAGE_ENTRIES, pages.size() - firstEntry);
+            entries.putInt(entryCount);
+            for (int j = 0; j < entryCount; j++) {
+                entries.putLong(pages.get(firstEntry + j));
+            }
+
+            writeToBlock(tablePages.get(i), 0, table, 0, BLOCK_SIZE);
+        }
+    }
+
+    private void writeSuperBlock(final long newGeneration,
+                                 final long checkpointSize,
+                                 final long logSize,
+                                 final BlockList tablePages) throws IOException {
+
+        final ByteBuffer superBlock = ByteBuffer.wrap(headerBlock, SUPERBLOCK_OFFSET, HEADER_SIZE - SUPERBLOCK_OFFSET);
+        superBlock.putInt(containerFiles.length);
+        superBlock.putLong(newGeneration);
+        superBlock.putLong(checkpointSize);
+        superBlock.putLong(logSize);
+        superBlock.putLong(tablePages.get(0));
+
+        final int superBlockSize = superBlock.position() - SUPERBLOCK_OFFSET;
+        writeFully(0, ByteBuffer.wrap(headerBlock, SUPERBLOCK_OFFSET, superBlockSize), SUPERBLOCK_OFFSET);
+
+        // Nothing is ever forced without a durability mode, so there is nothing to wait for
+        if (options.getDurability() == Durability.NONE)
+            writeDurableSuperBlock(newGeneration, checkpointSize, logSize, tablePages.get(0));
+    }
+
+    // Takes the published state that the next sync makes durable, with the blocks that it no longer refers to
+    DurableState prepareDurableState() {
+
+        final FreeBlocks unsyncedBlocks = header.getUnsyncedBlocks();
+        final long[] releasedBlocks = unsyncedBlocks.stream().toArray();
+        unsyncedBlocks.removeFrom(0);
+
+        return new DurableState(header, generation, checkpointSize, metadataSize,
+                header.getMetadataTable().get(0), releasedBlocks);
+    }
+
+    // Called once the container files are forced, so the superblock only refers to pages that are on the disk
+    void writeDurableState(final DurableState state) throws IOException {
+        writeDurableSuperBlock(state.generation, state.checkpointSize, state.logSize, state.firstTablePage);
+    }
+
+    // Called once the durable superblock is forced, so the blocks that the previous one referred to can be reused
+    void completeDurableState(final DurableState state) throws IOException {
+
+        if (closed || state.header != header) return;
+
+        final FreeBlocks freeBlocks = pinCount > 0 ? header.getDeferredFreeBlocks() : header.getFreeBlocks();
+        for (final long block : state.releasedBlocks) {
+            freeBlocks.add(block);
+        }
+        trimFreeBlocks();
+    }
+
+    // The syncs of the sync worker and of close() may overlap, so an older state never replaces a newer one
+    private synchronized void writeDurableSuperBlock(final long newGeneration,
+                                                     final long checkpointSize,
+                                                     final long logSize,
+                                                     final long firstTablePage) throws IOException {
+
+        if (newGeneration <= durableGeneration) return;
+
+        final ByteBuffer superBlock = ByteBuffer.allocate(4 * Long.BYTES);
+        superBlock.putLong(newGeneration).putLong(checkpointSize).putLong(logSize).putLong(firstTablePage).flip();
+        while (superBlock.hasRemaining()) {
+            onMember(0, channel -> channel.write(superBlock, DURABLE_SUPERBLOCK_OFFSET + superBlock.position()));
+        }
+
+        durableGeneration = newGeneration;
+    }
+
+    // A replica that is resynchronised from its source may go back to an older generation
+    private synchronized void resetDurableGeneration(final long newGeneration) {
+        durableGeneration = Math.min(durableGeneration, newGeneration);
+    }
+
+    static final class DurableState {
+
+        private final FileHeader header;
+        private final long generation;
+        private final long checkpointSize;
+        private final long logSize;
+        private final long firstTablePage;
+        private final long[] releasedBlocks;
+
+        private DurableState(final FileHeader header,
+                             final long generation,
+                             final long checkpointSize,
+                             final long logSize,
+                             final long firstTablePage,
+                             final long[] releasedBlocks) {
+            this.header = header;
+            this.generation = generation;
+            this.checkpointSize = checkpointSize;
+            this.logSize = logSize;
+            this.firstTablePage = firstTablePage;
+            this.releasedBlocks = releasedBlocks;
+        }
+    }
+
+    // The metadata stays in the first container file; the blocks skipped to reach it at the end become free
+    private long allocateMetadataPage() throws IOException {
 
-        int bytesOccupiedInLastBlock = (int) (file.getSize() % BLOCK_SIZE);
+        long page = header.getFreeBlocks().removeFromMember(0, containerFiles.length);
+        if (page < 0) {
+            final long nextBlock = getNextAvailableBlockNumber();
+            page = (nextBlock + containerFiles.length - 1) / containerFiles.length * containerFiles.length;
+            for (long block = nextBlock; block < page; block++) {
+                header.getFreeBlocks().add(block);
+            }
+        }
+        extendToBlockCount(page + 1);
+        header.getUsedBlocks().put(page, header.getMetadata());
+        header.getUsedBlocks().clearChecksum(page);
+
+        return page;
+    }
+
+    private void writeGeneration(final long newGeneration) throws IOException {
+        writeFully(0, ByteBuffer.allocate(Long.BYTES).putLong(0, newGeneration), GENERATION_OFFSET);
+    }
+
+    private void writeFully(final int member, final ByteBuffer buffer, final long position) throws IOException {
+        final int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            onMember(member, channel -> channel.write(buffer, position + buffer.position() - start));
+        }
+
+        memberSizes[member] = Math.max(memberSizes[member], position + buffer.position() - start);
+    }
+
+    int getMember(final long block) {
+        return (int) (block % containerFiles.length);
+    }
+
+    // The container files are only resized by this handler, so their sizes are cached instead of asking the OS
+    // on every block read
+    private long getMemberSize(final int member) {
+        return memberSizes[member];
+    }
+
+    private void readMemberSizes() throws IOException {
+        for (int i = 0; i < containerFiles.length; i++) {
+            memberSizes[i] = onMember(i, FileChannel::size);
+        }
+    }
 
-        if (bytesOccupiedInLastBlock != 0) {
-            moveFilePointerToBlock(blocks.get(blocks.size() - 1), bytesOccupiedInLastBlock);
-            final int bytesToWrite = Math.min(BLOCK_SIZE - bytesOccupiedInLastBlock, contents.length);
-            containerFile.write(contents, 0, bytesToWrite);
+    private void setMemberSize(final int member, final long size) throws IOException {
+        onMember(member, channel -> {
+            if (channel.size() > size) {
+                channel.truncate(size);
+            } else if (channel.size() < size) {
+                channel.write(ByteBuffer.allocate(1), size - 1);
+            }
+            return null;
+        });
 
-            int bytesLeft = contents.length - bytesToWrite;
-            for (int i = 0; i < bytesLeft / BLOCK_SIZE; i++) {
+        memberSizes[member] = size;
+    }
 
-                final long freeBlock = getFreeBlock();
-                blocks.add(freeBlock);
-                moveFilePointerToBlock(freeBlock, 0);
-                containerFile.write(contents, i * BLOCK_SIZE + bytesToWrite, BLOCK_SIZE);
+    // An interrupted thread closes the FileChannel for everybody, so the member is reopened and the operation
+    // is retried, unless the interrupted thread is the caller
+    <T> T onMember(final int member, final ChannelOperation<T> operation) throws IOException {
+        while (true) {
+
+            final RandomAccessFile containerFile = containerFiles[member];
+            try {
+                return operation.run(containerFile.getChannel());
+            } catch (ClosedChannelException e) {
+                reopen(member, containerFile, e);
+                if (e instanceof ClosedByInterruptException) throw e;
             }
+        }
+    }
+
+    private synchronized void reopen(final int member,
+                                     final RandomAccessFile closedFile,
+                                     final ClosedChannelException cause) throws IOException {
+
+        if (closed) throw cause;
+        if (containerFiles[member] != closedFile) return;
+
+        containerFiles[member] = new RandomAccessFile(fileNames[member], options.isReadOnly() ? "r" : "rw");
+    }
+
+    interface ChannelOperation<T> {
+        T run(FileChannel channel) throws IOException;
+    }
+
+    long getPosition(final long block, final int offset) {
+        return HEADER_SIZE + block / containerFiles.length * BLOCK_SIZE + offset;
+    }
+
+    private void writeToBlock(final long block,
+                              final int offset,
+                              final byte[] source,
+                              final int sourceOffset,
+                              final int length) throws IOException {
 
-            bytesLeft %= BLOCK_SIZE;
+        if (!isChecksummed(block) || offset == 0 && length == BLOCK_SIZE) {
 
-            if (bytesLeft != 0) {
-                final long freeBlock = getFreeBlock();
-                blocks.add(freeBlock);
-                moveFilePointerToBlock(freeBlock, 0);
-                containerFile.write(contents, contents.length - bytesLeft, bytesLeft);
+            writeFully(getMember(block), ByteBuffer.wrap(source, sourceOffset, length), getPosition(block, offset));
+            markChanged(block);
+            verifiedBlocks.remove(block);
+
+            if (isChecksummed(block)) {
+                header.getUsedBlocks().setChecksum(block, checksum(source, sourceOffset));
+            } else {
+                header.getUsedBlocks().clearChecksum(block);
             }
+            return;
+        }
 
+        // The checksum of a partial write is computed from the cached or previously stored block patched in memory,
+        // so the block is not read back after the write
+        readCachedBlock(block, checksumBlock);
+        System.arraycopy(source, sourceOffset, checksumBlock, offset, length);
+
+        writeFully(getMember(block), ByteBuffer.wrap(source, sourceOffset, length), getPosition(block, offset));
+        markChanged(block);
+
+        final int checksum = checksum(checksumBlock, 0);
+        header.getUsedBlocks().setChecksum(block, checksum);
+        System.arraycopy(checksumBlock, 0, verifiedBlocks.evict(block), 0, BLOCK_SIZE);
+        verifiedBlocks.add(block, header.getUsedBlocks().getGeneration(block), checksum);
+    }
+
+    private void readCachedBlock(final long block, final byte[] destination) throws IOException {
+
+        final BlockOwners usedBlocks = header.getUsedBlocks();
+        final byte[] cached = usedBlocks.hasChecksum(block)
+                ? verifiedBlocks.get(block, usedBlocks.getGeneration(block), usedBlocks.getChecksum(block))
+                : null;
+
+        if (cached == null) {
+            readStoredBlock(block, destination, 0);
         } else {
-            blocks.addAll(writeToContainerFile(contents));
+            System.arraycopy(cached, 0, destination, 0, BLOCK_SIZE);
         }
+    }
+
+    private void markChanged(final long block) {
+        header.getUsedBlocks().setGeneration(block, generation + 1);
+        metadataLog.blockChanged(block);
+        changed(header.getUsedBlocks().get(block));
+    }
 
-        blocks.forEach(block -> header.getUsedBlocks().put(block, file));
+    private void changed(final FileNode file) {
+        if (file != null && file != header.getMetadata()) metadataLog.nodeChanged(file);
+    }
 
-        file.updateSize((int) (file.getSize() + contents.length));
+    private boolean isChecksummed(final long block) {
+        return options.isChecksumsEnabled() && header.getUsedBlocks().get(block) != header.getMetadata();
     }
 
-    public byte[] read(final FileNode file) throws IOException {
+    static int checksum(final byte[] source, final int offset) {
+        final CRC32C crc = new CRC32C();
+        crc.update(source, offset, BLOCK_SIZE);
+        return (int) crc.getValue();
+    }
 
-        final int fileSize = (int) file.getSize();
-        byte[] contents = new byte[fileSize];
+    private void readStoredBlock(final long block, final byte[] destination, final int offset) throws IOException {
 
-        final Queue<Long> blocks = new LinkedList<>(file.getBlocks());
+        final int storedLength = getStoredLength(block);
+        if (storedLength < BLOCK_SIZE) Arrays.fill(destination, offset + storedLength, offset + BLOCK_SIZE, (byte) 0);
 
-        for (int i = 0; i < fileSize / BLOCK_SIZE; i++) {
-            final Long poll = Objects.requireNonNull(blocks.poll());
-            moveFilePointerToBlock(poll, 0);
-            containerFile.read(bytes);
+        if (storedLength > 0) readFromBlock(block, 0, destination, offset, storedLength);
+    }
+
+    private void readVerifiedBlock(final long block,
+                                   final int offset,
+                                   final byte[] destination,
+                                   final int destinationOffset,
+                                   final int length) throws IOException {
+
+        if (!options.isChecksumsEnabled() || !header.getUsedBlocks().hasChecksum(block)) {
+            readFromBlock(block, offset, destination, destinationOffset, length);
+            return;
+        }
 
-            System.arraycopy(bytes, 0, contents, i * BLOCK_SIZE, BLOCK_SIZE);
+        if (offset == 0 && length == BLOCK_SIZE) {
+            readStoredBlock(block, destination, destinationOffset);
+            verify(block, destination, destinationOffset);
+            return;
         }
 
-        final Long poll = blocks.poll();
+        final byte[] stored = SCRATCH_BLOCK.get();
+        readStoredBlock(block, stored, 0);
+        verify(block, stored, 0);
+        System.arraycopy(stored, offset, destination, destinationOffset, length);
+    }
 
-        if (poll == null) return contents;
+    // A small read of a block that was verified and has not changed since is served from the cache, which is only
+    // used under the file system lock
+    private void readVerifiedRange(final long block,
+                                   final int offset,
+                                   final byte[] destination,
+                                   final int destinationOffset,
+                                   final int length) throws IOException {
+
+        final BlockOwners usedBlocks = header.getUsedBlocks();
+        if (!options.isChecksumsEnabled() || !usedBlocks.hasChecksum(block) || offset == 0 && length == BLOCK_SIZE) {
+            readVerifiedBlock(block, offset, destination, destinationOffset, length);
+            return;
+        }
 
-        moveFilePointerToBlock(poll, 0);
-        final int bytesLeft = fileSize % BLOCK_SIZE;
-        containerFile.read(bytes, 0, bytesLeft);
-        System.arraycopy(bytes, 0, contents, fileSize - bytesLeft, bytesLeft);
+        final long blockGeneration = usedBlocks.getGeneration(block);
+        final int checksum = usedBlocks.getChecksum(block);
 
-        return contents;
+        byte[] contents = verifiedBlocks.get(block, blockGeneration, checksum);
+        if (contents == null) {
+            contents = verifiedBlocks.evict(block);
+            readStoredBlock(block, contents, 0);
+            verify(block, contents, 0);
+            verifiedBlocks.add(block, blockGeneration, checksum);
+        }
+
+        System.arraycopy(contents, offset, destination, destinationOffset, length);
     }
 
-    public void removeFile(final FileNode file) {
-        final List<Long> blocks = file.getBlocks();
-        header.getFreeBlocks().addAll(blocks);
-        blocks.forEach(header.getUsedBlocks()::remove);
+    private void verify(final long block, final byte[] contents, final int offset) throws IOException {
+
+        final BlockOwners usedBlocks = header.getUsedBlocks();
+        if (!options.isChecksumsEnabled() || !usedBlocks.hasChecksum(block)) return;
+
+        if (checksum(contents, offset) != usedBlocks.getChecksum(block)) {
+            final FileNode owner = usedBlocks.get(block);
+            throw new IOException("Block " + block + (owner == null ? "" : " of " + owner.getPath()) + " is corrupted");
+        }
     }
 
-    public void defragment() throws IOException {
+    public long[] getChecksummedBlocks() {
 
-        while (!header.getFreeBlocks().isEmpty()) {
+        final BlockOwners usedBlocks = header.getUsedBlocks();
+        final BlockList blocks = new BlockList();
+        for (long block = 0; block <= usedBlocks.lastBlock(); block++) {
+            final FileNode owner = usedBlocks.get(block);
+            if (owner != null && owner != header.getMetadata() && usedBlocks.hasChecksum(block)) blocks.add(block);
+        }
 
-            final Long freeBlockNumber = header.getFreeBlocks().remove();
+        return blocks.allocatedBlocks().toArray();
+    }
 
-            final Map.Entry<Long, FileNode> blockNumberFileNodeEntry = header.getUsedBlocks().firstEntry();
-            if (blockNumberFileNodeEntry == null) break;
+    public int getChecksum(final long block) {
+        return header.getUsedBlocks().getChecksum(block);
+    }
 
-            final Long lastUsedBlock = blockNumberFileNodeEntry.getKey();
-            if (lastUsedBlock < freeBlockNumber) {
-                header.getFreeBlocks().add(freeBlockNumber);
-                break;
-            }
-            final FileNode file = blockNumberFileNodeEntry.getValue();
-            final List<Long> fileBlocks = file.getBlocks();
-            final int blockIndex = findBlockIndex(lastUsedBlock, fileBlocks);
+    public boolean matchesChecksum(final long block, final int checksum, final byte[] scratch) {
+        try {
+            readStoredBlock(block, scratch, 0);
+            return checksum(scratch, 0) == checksum;
+        } catch (IOException e) {
+            return false;
+        }
+    }
 
-            moveFilePointerToBlock(lastUsedBlock, 0);
-            containerFile.read(bytes);
-            moveFilePointerToBlock(freeBlockNumber, 0);
-            containerFile.write(bytes);
+    public boolean isCorrupted(final long block) {
 
-            header.getUsedBlocks().remove(lastUsedBlock);
-            header.getUsedBlocks().put(freeBlockNumber, file);
+        final BlockOwners usedBlocks = header.getUsedBlocks();
+        if (usedBlocks.get(block) == null || !usedBlocks.hasChecksum(block)) return false;
 
-            fileBlocks.set(blockIndex, freeBlockNumber);
+        return !matchesChecksum(block, usedBlocks.getChecksum(block), new byte[BLOCK_SIZE]);
+    }
+
+    public String getOwnerPath(final long block) {
+        final FileNode owner = header.getUsedBlocks().get(block);
+        return owner == null ? null : owner.getPath();
+    }
+
+    private void readFromBlock(final long block,
+                               final int offset,
+                               final byte[] destination,
+                               final int destinationOffset,
+                               final int length) throws IOException {
+
+        final long position = getPosition(block, offset);
+
+        if (options.isReadOnly()) {
+
+            final MappedByteBuffer[] memberMappings = mappings[(int) (block % containerFiles.length)];
+            final int mappingIndex = (int) (position / MAPPING_SIZE);
+            final int positionInMapping = (int) (position % MAPPING_SIZE);
+
+            if (mappingIndex >= memberMappings.length
+                    || positionInMapping + length > memberMappings[mappingIndex].capacity())
+                throw new EOFException("Block " + block + " is beyond the end of the container file");
+
+            memberMappings[mappingIndex].get(positionInMapping, destination, destinationOffset, length);
+            return;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(destination, destinationOffset, length);
+        final long bufferStart = position - destinationOffset;
+
+        while (buffer.hasRemaining()) {
+            if (onMember(getMember(block), channel -> channel.read(buffer, bufferStart + buffer.position())) < 0)
+                throw new EOFException("Block " + block + " is beyond the end of the container file");
         }
+    }
 
-        containerFile.setLength(HEADER_SIZE + (long) header.getUsedBlocks().size() * BLOCK_SIZE);
+    public void deleteContainerFile() {
+        for (final String fileName : fileNames) {
+            final File f = new File(fileName);
+            if (!f.delete()) throw new RuntimeException("Could not delete the container file " + fileName);
+        }
     }
 
-    private static int findBlockIndex(final Long lastUsedBlock, final List<Long> blocks) {
+    public void sync() throws IOException {
+        for (int i = 0; i < containerFiles.length; i++) {
+            onMember(i, channel -> {
+                channel.force(true);
+                return null;
+            });
+        }
+    }
 
-        for (int i = 0; i < blocks.size(); i++) {
-            if (blocks.get(i).equals(lastUsedBlock)) {
-                return i;
-            }
+    @Override
+    public void close() throws Exception {
+        synchronized (this) {
+            closed = true;
         }
 
-        throw new RuntimeException("Could not find the block index " + lastUsedBlock);
+        if (prefetcher != null) prefetcher.shutdownNow();
+
+        for (final RandomAccessFile containerFile : containerFiles) {
+            containerFile.close();
+        }
+    }
+
+    public void writeToFile(final FileNode file, final byte[] contents) throws IOException {
+
+        appendBuffers.remove(file);
+        releaseBlocks(file);
+
+        writeToContainerFile(file, contents);
+        file.updateSize(contents.length);
+    }
+
+    private void writeToContainerFile(final FileNode file, final byte[] contents) throws IOException {
+
+        final BlockList blocks = file.getBlocks();
+
+        for (int i = 0; i < contents.length / BLOCK_SIZE; i++) {
+
+            final long freeBlock = allocateBlock(file);
+            blocks.add(freeBlock);
+            header.getUsedBlocks().put(freeBlock, file);
+            writeToBlock(freeBlock, 0, contents, i * BLOCK_SIZE, BLOCK_SIZE);
+        }
+
+        final int bytesLeft = contents.length % BLOCK_SIZE;
+
+        if (bytesLeft == 0) return;
+
+        final long freeBlock = allocateBlock(file);
+        blocks.add(freeBlock);
+        header.getUsedBlocks().put(freeBlock, file);
+
+        if (isChecksummed(freeBlock)) {
+            writeToBlock(freeBlock, 0, padBlock(contents, contents.length - bytesLeft, 0, bytesLeft), 0, BLOCK_SIZE);
+        } else {
+            writeToBlock(freeBlock, 0, contents, contents.length - bytesLeft, bytesLeft);
+        }
+    }
+
+    private static byte[] padBlock(final byte[] contents,
+                                   final int contentsOffset,
+                                   final int offset,
+                                   final int length) {
+
+        final byte[] block = SCRATCH_BLOCK.get();
+        Arrays.fill(block, (byte) 0);
+        System.arraycopy(contents, contentsOffset, block, offset, length);
+
+        return block;
+    }
+
+    private long allocateBlock(final FileNode file) throws IOException {
+
+        if (!file.hasReservedBlocks() && file.getGrowthHint() > 0) {
+            reserveBlocks(file, (file.getGrowthHint() + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        }
+
+        if (!file.hasReservedBlocks()) return getFreeBlock();
+
+        final long block = file.takeReservedBlock();
+        if (!file.hasReservedBlocks()) header.getFilesWithReservedBlocks().remove(file);
+
+        return block;
+    }
+
+    public void preallocate(final FileNode file, final long size) throws IOException {
+
+        final long blocksNeeded = (size + BLOCK_SIZE - 1) / BLOCK_SIZE - file.getBlocks().allocatedCount();
+
+        if (blocksNeeded > file.getReservedBlockCount()) reserveBlocks(file, blocksNeeded);
+    }
+
+    private void reserveBlocks(final FileNode file, final long blockCount) throws IOException {
+
+        releaseReservedBlocks(file);
+
+        final long firstBlock = getNextAvailableBlockNumber();
+        extendToBlockCount(firstBlock + blockCount);
+
+        file.reserveBlocks(firstBlock, blockCount);
+        header.getFilesWithReservedBlocks().add(file);
+        changed(file);
+    }
+
+    private void releaseReservedBlocks(final FileNode file) {
+
+        if (file.hasReservedBlocks()) changed(file);
+        while (file.hasReservedBlocks()) {
+            header.getFreeBlocks().add(file.takeReservedBlock());
+        }
+
+        header.getFilesWithReservedBlocks().remove(file);
+    }
+
+    public boolean releaseReservedBlocks() {
+
+        if (header.getFilesWithReservedBlocks().isEmpty()) return false;
+
+        new ArrayList<>(header.getFilesWithReservedBlocks()).forEach(this::releaseReservedBlocks);
+
+        return true;
+    }
+
+    public long getReservedSize(final FileNode file) {
+        return file.getReservedBlockCount() * BLOCK_SIZE;
+    }
+
+    private long getFreeBlock() throws IOException {
+        if (!header.getFreeBlocks().isEmpty()) {
+            return header.getFreeBlocks().remove();
+        } else {
+            return getNextAvailableBlockNumber();
+        }
+    }
+
+    private long getNextAvailableBlockNumber() throws IOException {
+
+        long nextAvailableBlockNumber = Long.MAX_VALUE;
+        for (int i = 0; i < containerFiles.length; i++) {
+            final long memberLength = getMemberSize(i) - HEADER_SIZE;
+            final long memberBlocks = (long) Math.ceil(memberLength / (double) BLOCK_SIZE);
+            nextAvailableBlockNumber = Math.min(nextAvailableBlockNumber, memberBlocks * containerFiles.length + i);
+        }
+
+        return nextAvailableBlockNumber;
+    }
+
+    private long getMemberLength(final int member, final long blockCount) {
+        final long memberBlocks = (blockCount - member + containerFiles.length - 1) / containerFiles.length;
+        return HEADER_SIZE + Math.max(0, memberBlocks) * BLOCK_SIZE;
+    }
+
+    private void extendToBlockCount(final long blockCount) throws IOException {
+        for (int i = 0; i < containerFiles.length; i++) {
+            final long length = getMemberLength(i, blockCount);
+            if (getMemberSize(i) < length) setMemberSize(i, length);
+        }
+    }
+
+    public void appendToFile(final FileNode file, final byte[] contents) throws IOException {
+        flushAppendBuffer(file);
+        writeAt(file, file.getSize(), contents);
+    }
+
+    public boolean bufferAppend(final FileNode file, final byte[] contents) throws IOException {
+
+        if (options.getAppendBufferSize() == 0 || options.getDurability() == Durability.COMMIT) {
+            appendToFile(file, contents);
+            return true;
+        }
+
+        final AppendBuffer buffer = appendBuffers.computeIfAbsent(file, f -> new AppendBuffer(contents.length));
+        buffer.append(contents);
+
+        boolean flushed = false;
+        if (buffer.size() >= options.getAppendBufferSize()) flushed = flushAppendBuffer(file);
+
+        return flushExpiredAppendBuffers() | flushed;
+    }
+
+    public boolean flushExpiredAppendBuffers() throws IOException {
+
+        final long expiredAt = System.currentTimeMillis() - options.getAppendFlushDelayMillis();
+
+        boolean flushed = false;
+        for (final FileNode file : new ArrayList<>(appendBuffers.keySet())) {
+            if (appendBuffers.get(file).getCreatedAt() <= expiredAt) flushed |= flushAppendBuffer(file);
+        }
+
+        return flushed;
+    }
+
+    public long getAppendFlushDeadline() {
+
+        long deadline = Long.MAX_VALUE;
+        for (final AppendBuffer buffer : appendBuffers.values()) {
+            deadline = Math.min(deadline, buffer.getCreatedAt() + options.getAppendFlushDelayMillis());
+        }
+
+        return deadline;
+    }
+
+    public boolean flushAppendBuffer(final FileNode file) throws IOException {
+
+        final AppendBuffer buffer = appendBuffers.remove(file);
+        if (buffer == null) return false;
+
+        final byte[] contents = buffer.toByteArray();
+        reserveRun(file, file.getSize(), contents.length);
+        writeAt(file, file.getSize(), contents);
+
+        return true;
+    }
+
+    // The new blocks of a flushed buffer are taken from one run, instead of one by one from the lowest free blocks;
+    // a file with a growth hint gets its own reservation
+    private void reserveRun(final FileNode file, final long position, final int length) throws IOException {
+
+        if (file.hasReservedBlocks() || file.getGrowthHint() > 0) return;
+
+        final BlockList blocks = file.getBlocks();
+        int blockCount = 0;
+        for (long i = position / BLOCK_SIZE; i < (position + length + BLOCK_SIZE - 1) / BLOCK_SIZE; i++) {
+            if (i >= blocks.size() || blocks.get((int) i) == FileNode.HOLE) blockCount++;
+        }
+        if (blockCount < 2) return;
+
+        long firstBlock = header.getFreeBlocks().removeRun(blockCount);
+        if (firstBlock < 0) {
+            firstBlock = getNextAvailableBlockNumber();
+            extendToBlockCount(firstBlock + blockCount);
+        }
+
+        file.reserveBlocks(firstBlock, blockCount);
+        header.getFilesWithReservedBlocks().add(file);
+        changed(file);
+    }
+
+    public boolean flushAppendBuffers() throws IOException {
+
+        boolean flushed = false;
+        for (final FileNode file : new ArrayList<>(appendBuffers.keySet())) {
+            flushed |= flushAppendBuffer(file);
+        }
+
+        return flushed;
+    }
+
+    public long getSize(final FileNode file) {
+        final AppendBuffer buffer = appendBuffers.get(file);
+        return buffer == null ? file.getSize() : file.getSize() + buffer.size();
+    }
+
+    public void write(final FileNode file, final long position, final byte[] contents) throws IOException {
+        flushAppendBuffer(file);
+        writeAt(file, position, contents);
+    }
+
+    private void writeAt(final FileNode file, final long position, final byte[] contents) throws IOException {
+
+        final long fileSize = file.getSize();
+        final long end = position + contents.length;
+
+        if (position > fileSize) clearTail(file);
+        changed(file);
+
+        final BlockList blocks = file.getBlocks();
+        blocks.addHoles((end + BLOCK_SIZE - 1) / BLOCK_SIZE - blocks.size());
+
+        for (long offset = position; offset < end; ) {
+
+            final int blockIndex = (int) (offset / BLOCK_SIZE);
+            final int offsetInBlock = (int) (offset % BLOCK_SIZE);
+            final int length = (int) Math.min(BLOCK_SIZE - offsetInBlock, end - offset);
+
+            final int contentsOffset = (int) (offset - position);
+            long block = blocks.get(blockIndex);
+            if (block != FileNode.HOLE) {
+                writeToBlock(block, offsetInBlock, contents, contentsOffset, length);
+                offset += length;
+                continue;
+            }
+
+            block = allocateBlock(file);
+            blocks.set(blockIndex, block);
+            header.getUsedBlocks().put(block, file);
+
+            // A new block that is only partly written is written whole with zeros around the range, unless it needs
+            // neither zeros before the range nor a checksum
+            final boolean coversBlockPrefix = offsetInBlock == 0 && (length == BLOCK_SIZE || end >= fileSize);
+            if (coversBlockPrefix && (length == BLOCK_SIZE || !isChecksummed(block))) {
+                writeToBlock(block, offsetInBlock, contents, contentsOffset, length);
+            } else {
+                writeToBlock(block, 0, padBlock(contents, contentsOffset, offsetInBlock, length), 0, BLOCK_SIZE);
+            }
+
+            offset += length;
+        }
+
+        file.updateSize(Math.max(fileSize, end));
+    }
+
+    public void truncate(final FileNode file, final long size) throws IOException {
+
+        flushAppendBuffer(file);
+        changed(file);
+
+        final BlockList blocks = file.getBlocks();
+        final int blockCount = (int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+
+        if (size < file.getSize()) {
+
+            for (int i = blocks.nextAllocated(blockCount); i < blocks.size(); i = blocks.nextAllocated(i + 1)) {
+                releaseBlock(blocks.get(i));
+            }
+            blocks.truncate(blockCount);
+        } else {
+
+            clearTail(file);
+            blocks.addHoles(blockCount - blocks.size());
+        }
+
+        file.updateSize(size);
+    }
+
+    public void punchHole(final FileNode file, final long position, final long length) throws IOException {
+
+        flushAppendBuffer(file);
+        changed(file);
+
+        final BlockList blocks = file.getBlocks();
+        final long end = Math.min(position + length, file.getSize());
+
+        for (long offset = position; offset < end; ) {
+
+            final int blockIndex = (int) (offset / BLOCK_SIZE);
+            final int nextAllocated = blocks.nextAllocated(blockIndex);
+            if (nextAllocated != blockIndex) {
+                offset = (long) nextAllocated * BLOCK_SIZE;
+                continue;
+            }
+
+            final int offsetInBlock = (int) (offset % BLOCK_SIZE);
+            final int bytesInBlock = (int) Math.min(BLOCK_SIZE - offsetInBlock, end - offset);
+            final long block = blocks.get(blockIndex);
+
+            if (bytesInBlock == BLOCK_SIZE || (offsetInBlock == 0 && offset + bytesInBlock == file.getSize())) {
+                releaseBlock(block);
+                blocks.set(blockIndex, FileNode.HOLE);
+            } else {
+                writeToBlock(block, offsetInBlock, EMPTY_BLOCK, 0, bytesInBlock);
+            }
+
+            offset += bytesInBlock;
+        }
+    }
+
+    private void clearTail(final FileNode file) throws IOException {
+
+        final int bytesOccupiedInLastBlock = (int) (file.getSize() % BLOCK_SIZE);
+        if (bytesOccupiedInLastBlock == 0) return;
+
+        final long lastBlock = file.getBlocks().get(file.getBlocks().size() - 1);
+        if (lastBlock == FileNode.HOLE) return;
+
+        writeToBlock(lastBlock, bytesOccupiedInLastBlock, EMPTY_BLOCK, 0, BLOCK_SIZE - bytesOccupiedInLastBlock);
+    }
+
+    public int read(final FileNode file,
+                    final long position,
+                    final byte[] destination,
+                    final int offset,
+                    final int length) throws IOException {
+
+        final long size = getSize(file);
+        if (position >= size) return -1;
+
+        final int bytesToRead = (int) Math.min(length, size - position);
+        final long storedEnd = Math.min(position + bytesToRead, file.getSize());
+
+        for (long offsetInFile = position; offsetInFile < storedEnd; ) {
+
+            final int blockIndex = (int) (offsetInFile / BLOCK_SIZE);
+            final int offsetInBlock = (int) (offsetInFile % BLOCK_SIZE);
+            final int bytesInBlock = (int) Math.min(BLOCK_SIZE - offsetInBlock, storedEnd - offsetInFile);
+            final int destinationOffset = offset + (int) (offsetInFile - position);
+
+            final long block = file.getBlocks().get(blockIndex);
+            if (block == FileNode.HOLE) {
+                Arrays.fill(destination, destinationOffset, destinationOffset + bytesInBlock, (byte) 0);
+            } else {
+                readVerifiedRange(block, offsetInBlock, destination, destinationOffset, bytesInBlock);
+            }
+
+            offsetInFile += bytesInBlock;
+        }
+
+        if (position + bytesToRead > file.getSize()) {
+            final long bufferedFrom = Math.max(position, file.getSize());
+            appendBuffers.get(file).copyTo((int) (bufferedFrom - file.getSize()), destination,
+                    offset + (int) (bufferedFrom - position), (int) (position + bytesToRead - bufferedFrom));
+        }
+
+        return bytesToRead;
+    }
+
+    public void prefetch(final FileNode file, final long position, final long length) throws IOException {
+
+        final long end = Math.min(position + length, file.getSize());
+        if (end <= position) return;
+
+        final int firstBlockIndex = (int) (position / BLOCK_SIZE);
+        final long firstBlockStart = (long) firstBlockIndex * BLOCK_SIZE;
+
+        final List<Runnable> reads = new ArrayList<>();
+        forEachRun(file.getBlocks(), firstBlockIndex, end - firstBlockStart, (member, runPosition, runLength) -> {
+            if (member >= 0) reads.add(() -> warmUp(member, runPosition, runLength));
+        });
+
+        if (prefetcher == null) {
+            prefetcher = Executors.newFixedThreadPool(Math.max(2, containerFiles.length), runnable -> {
+                final Thread thread = new Thread(runnable, "filesystem-prefetch");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        reads.forEach(prefetcher::execute);
+    }
+
+    private void warmUp(final int member, final long position, final long length) {
+
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(PREFETCH_CHUNK_SIZE, length));
+        try {
+            for (long read = 0; read < length; ) {
+
+                buffer.clear().limit((int) Math.min(buffer.capacity(), length - read));
+                final long offset = position + read;
+                final int count = onMember(member, channel -> channel.read(buffer, offset));
+                if (count <= 0) return;
+
+                read += count;
+            }
+        } catch (IOException e) {
+            // Read-ahead is advisory, the reader will report the error if the blocks are really unreadable
+        }
+    }
+
+    public long getAllocatedSize(final FileNode file) {
+        return (long) file.getBlocks().allocatedCount() * BLOCK_SIZE;
+    }
+
+    public byte[] read(final FileNode file) throws IOException {
+
+        final byte[] contents = readBlocks(file.getBlocks(), (int) file.getSize(), true);
+
+        final AppendBuffer buffer = appendBuffers.get(file);
+        if (buffer == null) return contents;
+
+        final byte[] bufferedContents = Arrays.copyOf(contents, contents.length + buffer.size());
+        buffer.copyTo(bufferedContents, contents.length);
+
+        return bufferedContents;
+    }
+
+    public List<byte[]> readFiles(final List<FileNode> files) throws IOException {
+
+        final List<byte[]> contents = new ArrayList<>(files.size());
+        long requestCount = 0;
+        long lastSlot = 0;
+        for (final FileNode file : files) {
+
+            contents.add(new byte[(int) getSize(file)]);
+
+            final BlockList blocks = file.getBlocks();
+            final long storedBlocks = (file.getSize() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            for (int i = blocks.nextAllocated(0); i < storedBlocks; i = blocks.nextAllocated(i + 1)) {
+                requestCount++;
+                lastSlot = Math.max(lastSlot, blocks.get(i) / containerFiles.length);
+            }
+        }
+        if (requestCount > Integer.MAX_VALUE) throw new RuntimeException("Too many blocks to read in one batch");
+
+        final int[] fileIndexes = new int[(int) requestCount];
+        final int[] blockIndexes = new int[(int) requestCount];
+        final long[] requests = new long[(int) requestCount];
+        int request = 0;
+        for (int f = 0; f < files.size(); f++) {
+
+            final FileNode file = files.get(f);
+            final BlockList blocks = file.getBlocks();
+            final long storedBlocks = (file.getSize() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            for (int i = blocks.nextAllocated(0); i < storedBlocks; i = blocks.nextAllocated(i + 1)) {
+
+                final long block = blocks.get(i);
+                final long member = block % containerFiles.length;
+                final long physicalOrder = member * (lastSlot + 1) + block / containerFiles.length;
+                fileIndexes[request] = f;
+                blockIndexes[request] = i;
+                requests[request] = physicalOrder << 32 | request;
+                request++;
+            }
+        }
+
+        Arrays.parallelSort(requests);
+
+        final List<int[]> ranges = new ArrayList<>();
+        for (int start = 0; start < requests.length; ) {
+
+            final long firstBlock = blockOf(requests[start], files, fileIndexes, blockIndexes);
+            int end = start + 1;
+            while (end < requests.length && end - start < MAX_COALESCED_BLOCKS
+                    && blockOf(requests[end], files, fileIndexes, blockIndexes)
+                    == firstBlock + (long) (end - start) * containerFiles.length) {
+                end++;
+            }
+
+            ranges.add(new int[]{start, end});
+            start = end;
+        }
+
+        runInParallel(ranges, range -> {
+
+            final int rangeBlocks = range[1] - range[0];
+            final long firstBlock = blockOf(requests[range[0]], files, fileIndexes, blockIndexes);
+            final byte[] buffer = new byte[rangeBlocks * BLOCK_SIZE];
+            readStoredRange(firstBlock, rangeBlocks, buffer);
+
+            for (int i = 0; i < rangeBlocks; i++) {
+
+                final int requestIndex = (int) requests[range[0] + i];
+                final int fileIndex = fileIndexes[requestIndex];
+                final long fileOffset = (long) blockIndexes[requestIndex] * BLOCK_SIZE;
+                final byte[] fileContents = contents.get(fileIndex);
+
+                verify(firstBlock + (long) i * containerFiles.length, buffer, i * BLOCK_SIZE);
+                System.arraycopy(buffer, i * BLOCK_SIZE, fileContents, (int) fileOffset,
+                        (int) Math.min(BLOCK_SIZE, files.get(fileIndex).getSize() - fileOffset));
+            }
+        });
+
+        for (int f = 0; f < files.size(); f++) {
+            final AppendBuffer buffer = appendBuffers.get(files.get(f));
+            if (buffer != null) buffer.copyTo(contents.get(f), (int) files.get(f).getSize());
+        }
+
+        return contents;
+    }
+
+    private static long blockOf(final long request,
+                                final List<FileNode> files,
+                                final int[] fileIndexes,
+                                final int[] blockIndexes) {
+        final int requestIndex = (int) request;
+        return files.get(fileIndexes[requestIndex]).getBlocks().get(blockIndexes[requestIndex]);
+    }
+
+    private void readStoredRange(final long firstBlock, final int blockCount, final byte[] destination)
+            throws IOException {
+
+        if (options.isReadOnly()) {
+            for (int i = 0; i < blockCount; i++) {
+                readStoredBlock(firstBlock + (long) i * containerFiles.length, destination, i * BLOCK_SIZE);
+            }
+            return;
+        }
+
+        final long memberLength = getMemberSize(getMember(firstBlock));
+        final int storedLength = (int) Math.max(0,
+                Math.min((long) blockCount * BLOCK_SIZE, memberLength - getPosition(firstBlock, 0)));
+
+        Arrays.fill(destination, storedLength, blockCount * BLOCK_SIZE, (byte) 0);
+        if (storedLength > 0) readFromBlock(firstBlock, 0, destination, 0, storedLength);
+    }
+
+    private byte[] readBlocks(final BlockList blocks, final int size, final boolean verify) throws IOException {
+
+        final byte[] contents = new byte[size];
+        final int blockCount = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+        if (containerFiles.length == 1 || blockCount < containerFiles.length) {
+            readBlocks(blocks, contents, 0, 1, verify);
+            return contents;
+        }
+
+        final List<Integer> members = new ArrayList<>(containerFiles.length);
+        for (int i = 0; i < containerFiles.length; i++) {
+            members.add(i);
+        }
+
+        runInParallel(members, member -> readBlocks(blocks, contents, member, containerFiles.length, verify));
+
+        return contents;
+    }
+
+    private void readBlocks(final BlockList blocks,
+                            final byte[] contents,
+                            final int member,
+                            final int memberCount,
+                            final boolean verify) throws IOException {
+
+        final long storedBlocks = ((long) contents.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        for (int i = blocks.nextAllocated(0); i < storedBlocks; i = blocks.nextAllocated(i + 1)) {
+
+            final long block = blocks.get(i);
+            if (block % memberCount != member) continue;
+
+            final int length = Math.min(BLOCK_SIZE, contents.length - i * BLOCK_SIZE);
+            if (verify) {
+                readVerifiedBlock(block, 0, contents, i * BLOCK_SIZE, length);
+            } else {
+                readFromBlock(block, 0, contents, i * BLOCK_SIZE, length);
+            }
+        }
+    }
+
+    public void removeFile(final FileNode file) {
+        appendBuffers.remove(file);
+        releaseBlocks(file);
+        releaseReservedBlocks(file);
+    }
+
+    private void releaseBlocks(final FileNode file) {
+        changed(file);
+        final BlockList blocks = file.getBlocks();
+        blocks.allocatedBlocks().forEach(this::releaseBlock);
+        blocks.clear();
+    }
+
+    // Readers of the published header may still read a released block, so it is only reused after the next flush
+    private void releaseBlock(final long block) {
+        header.getReleasedBlocks().add(block);
+        header.getUsedBlocks().remove(block);
+    }
+
+    // The files are not attached to the tree yet, so releasing their blocks rolls back a failed import
+    public void importFiles(final Map<FileNode, Path> files) throws IOException {
+
+        final Map<FileNode, Long> sizes = new HashMap<>();
+        for (final Map.Entry<FileNode, Path> entry : files.entrySet()) {
+            sizes.put(entry.getKey(), Files.size(entry.getValue()));
+        }
+
+        boolean imported = false;
+        try {
+            copyFiles(files, sizes);
+            imported = true;
+        } finally {
+            if (!imported) files.keySet().forEach(this::releaseBlocks);
+        }
+    }
+
+    private void copyFiles(final Map<FileNode, Path> files, final Map<FileNode, Long> sizes) throws IOException {
+
+        long nextBlock = getNextAvailableBlockNumber();
+
+        for (final Map.Entry<FileNode, Path> entry : files.entrySet()) {
+
+            final FileNode file = entry.getKey();
+            final long size = sizes.get(file);
+
+            for (long i = 0; i < (size + BLOCK_SIZE - 1) / BLOCK_SIZE; i++) {
+                file.getBlocks().add(nextBlock);
+                header.getUsedBlocks().put(nextBlock, file);
+                markChanged(nextBlock);
+                nextBlock++;
+            }
+
+            file.updateSize(size);
+        }
+
+        extendToBlockCount(nextBlock);
+
+        final Map<FileNode, int[]> checksums = new HashMap<>();
+        if (options.isChecksumsEnabled()) {
+            for (final FileNode file : files.keySet()) checksums.put(file, new int[file.getBlocks().size()]);
+        }
+
+        runInParallel(files.entrySet(), entry -> {
+            try (final FileChannel source = FileChannel.open(entry.getValue(), StandardOpenOption.READ)) {
+
+                final FileNode file = entry.getKey();
+                if (options.isChecksumsEnabled()) {
+                    copyChecksummed(source, entry.getValue(), file, checksums.get(file));
+                    return;
+                }
+
+                forEachRun(file.getBlocks(), file.getSize(), (member, position, length) -> {
+                    for (long transferred = 0; transferred < length; ) {
+                        final long offset = transferred;
+                        final long count = onMember(member,
+                                channel -> channel.transferFrom(source, position + offset, length - offset));
+                        if (count == 0) throw new EOFException(entry.getValue() + " was truncated during the import");
+                        transferred += count;
+                    }
+                });
+            }
+        });
+
+        for (final FileNode file : files.keySet()) {
+            final BlockList blocks = file.getBlocks();
+            for (int i = 0; i < blocks.size(); i++) {
+
+                final long block = blocks.get(i);
+                verifiedBlocks.remove(block);
+
+                if (options.isChecksumsEnabled()) {
+                    header.getUsedBlocks().setChecksum(block, checksums.get(file)[i]);
+                } else {
+                    header.getUsedBlocks().clearChecksum(block);
+                }
+            }
+        }
+    }
+
+    // The source is copied through the heap instead of transferred, so the checksums are computed from the copied
+    // bytes instead of reading every block back
+    private void copyChecksummed(final FileChannel source,
+                                 final Path path,
+                                 final FileNode file,
+                                 final int[] checksums) throws IOException {
+
+        final ByteBuffer buffer = ByteBuffer.allocate(TRANSFER_CHUNK_BLOCKS * BLOCK_SIZE);
+        final int[] blockIndex = {0};
+
+        forEachRun(file.getBlocks(), file.getSize(), (member, position, length) -> {
+            for (long copied = 0; copied < length; ) {
+
+                buffer.clear().limit((int) Math.min(buffer.capacity(), length - copied));
+                while (buffer.hasRemaining()) {
+                    if (source.read(buffer) < 0) throw new EOFException(path + " was truncated during the import");
+                }
+
+                final int count = buffer.position();
+                final int blockCount = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+                Arrays.fill(buffer.array(), count, blockCount * BLOCK_SIZE, (byte) 0);
+                for (int i = 0; i < blockCount; i++) {
+                    checksums[blockIndex[0]++] = checksum(buffer.array(), i * BLOCK_SIZE);
+                }
+
+                buffer.flip();
+                final long chunkPosition = position + copied;
+                while (buffer.hasRemaining()) {
+                    onMember(member, channel -> channel.write(buffer, chunkPosition + buffer.position()));
+                }
+
+                copied += count;
+            }
+        });
+    }
+
+    public FileTransfer prepareTransfer(final FileNode file) throws IOException {
+
+        final AppendBuffer buffer = appendBuffers.get(file);
+        final byte[] bufferedContents = buffer == null ? null : buffer.toByteArray();
+
+        final FileTransfer transfer = new FileTransfer(this, file.getSize(), bufferedContents);
+        forEachRun(file.getBlocks(), file.getSize(), transfer::addRun);
+
+        return transfer;
+    }
+
+    public void pinBlocks() {
+        pinCount++;
+    }
+
+    public void unpinBlocks() {
+
+        if (pinCount == 0) throw new RuntimeException("The blocks are not pinned");
+        if (--pinCount == 0) releaseDeferredBlocks();
+    }
+
+    private void releaseDeferredBlocks() {
+        final FreeBlocks deferredFreeBlocks = header.getDeferredFreeBlocks();
+        deferredFreeBlocks.stream().forEach(header.getFreeBlocks()::add);
+        deferredFreeBlocks.removeFrom(0);
+    }
+
+    public boolean hasPinnedBlocks() {
+        return pinCount > 0;
+    }
+
+    public void exportFiles(final Map<Path, FileTransfer> transfers) throws IOException {
+        runInParallel(transfers.entrySet(), entry -> {
+            try (final FileChannel target = FileChannel.open(entry.getKey(), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                entry.getValue().exportTo(target);
+            }
+        });
+    }
+
+    public FileUpload prepareUpload(final FileNode file) {
+        return new FileUpload(this, file);
+    }
+
+    // The chunk is reserved at the end of the container and belongs to nobody until the upload is published
+    public void reserveUploadChunk(final FileUpload upload) throws IOException {
+
+        final long firstBlock = getNextAvailableBlockNumber();
+        extendToBlockCount(firstBlock + TRANSFER_CHUNK_BLOCKS);
+
+        upload.addBlocks(firstBlock, TRANSFER_CHUNK_BLOCKS);
+    }
+
+    public void publishUpload(final FileUpload upload) throws IOException {
+
+        final FileNode file = upload.getFile();
+        appendBuffers.remove(file);
+        releaseBlocks(file);
+
+        final BlockList uploadedBlocks = upload.getBlocks();
+        final int usedBlocks = (int) ((upload.getSize() + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        for (int i = 0; i < uploadedBlocks.size(); i++) {
+
+            final long block = uploadedBlocks.get(i);
+            if (i >= usedBlocks) {
+                header.getFreeBlocks().add(block);
+                continue;
+            }
+
+            file.getBlocks().add(block);
+            header.getUsedBlocks().put(block, file);
+            markChanged(block);
+            verifiedBlocks.remove(block);
+
+            if (isChecksummed(block)) {
+                header.getUsedBlocks().setChecksum(block, upload.getChecksum(i));
+            } else {
+                header.getUsedBlocks().clearChecksum(block);
+            }
+        }
+
+        file.updateSize(upload.getSize());
+        trimFreeBlocks();
+    }
+
+    public void abortUpload(final FileUpload upload) throws IOException {
+        upload.getBlocks().allocatedBlocks().forEach(header.getFreeBlocks()::add);
+        trimFreeBlocks();
+    }
+
+    // Gives the free blocks at the end of the container back to the OS, so a container never keeps a dead tail
+    // that a later defragment would have to tell apart from live data
+    private void trimFreeBlocks() throws IOException {
+
+        final long blockCount = getNextAvailableBlockNumber();
+
+        long newBlockCount = blockCount;
+        while (newBlockCount > 0 && header.getFreeBlocks().contains(newBlockCount - 1)) newBlockCount--;
+
+        if (newBlockCount == blockCount) return;
+
+        header.getFreeBlocks().removeFrom(newBlockCount);
+        setBlockCount(newBlockCount);
+    }
+
+    private void forEachRun(final BlockList blocks, final long size, final BlockRunConsumer consumer)
+            throws IOException {
+        forEachRun(blocks, 0, size, consumer);
+    }
+
+    private void forEachRun(final BlockList blocks,
+                            final int firstBlockIndex,
+                            final long size,
+                            final BlockRunConsumer consumer) throws IOException {
+
+        long bytesLeft = size;
+        for (int i = firstBlockIndex; bytesLeft > 0; ) {
+
+            final long firstBlock = blocks.get(i);
+
+            int runLength = 1;
+            if (firstBlock == FileNode.HOLE) {
+                runLength = blocks.nextAllocated(i) - i;
+            } else {
+                while (i + runLength < blocks.size() && (long) runLength * BLOCK_SIZE < bytesLeft
+                        && blocks.get(i + runLength) == firstBlock + (long) runLength * containerFiles.length) {
+                    runLength++;
+                }
+            }
+
+            final long length = Math.min((long) runLength * BLOCK_SIZE, bytesLeft);
+            if (firstBlock == FileNode.HOLE) {
+                consumer.accept(-1, FileNode.HOLE, length);
+            } else {
+                consumer.accept((int) (firstBlock % containerFiles.length), getPosition(firstBlock, 0), length);
+            }
+
+            bytesLeft -= length;
+            i += runLength;
+        }
+    }
+
+    private static <T> void runInParallel(final Collection<T> tasks, final IOConsumer<T> task) throws IOException {
+        try {
+            tasks.parallelStream().forEach(t -> {
+                try {
+                    task.accept(t);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private interface BlockRunConsumer {
+        void accept(int member, long position, long length) throws IOException;
+    }
+
+    private interface IOConsumer<T> {
+        void accept(T t) throws IOException;
+    }
+
+    public FileSystemStatistics getStatistics() throws IOException {
+
+        final List<FileNode> files = new ArrayList<>();
+        collectFiles(header.getRoot(), files);
+
+        long fragmentedFileCount = 0;
+        long runCount = 0;
+        long maxRunsPerFile = 0;
+        for (final FileNode file : files) {
+
+            final BlockList blocks = file.getBlocks();
+            long runs = 0;
+            for (int i = blocks.nextAllocated(0); i < blocks.size(); i = blocks.nextAllocated(i + 1)) {
+                if (i == 0 || blocks.get(i - 1) != blocks.get(i) - 1) runs++;
+            }
+
+            if (runs > 1) fragmentedFileCount++;
+            runCount += runs;
+            maxRunsPerFile = Math.max(maxRunsPerFile, runs);
+        }
+
+        final long[] freeBlocks = header.getFreeBlocks().stream().toArray();
+        final SortedMap<Long, Long> freeRunsByLength = new TreeMap<>();
+        long largestFreeRun = 0;
+        for (int i = 0; i < freeBlocks.length; ) {
+
+            int end = i + 1;
+            while (end < freeBlocks.length && freeBlocks[end] == freeBlocks[end - 1] + 1) end++;
+
+            final long length = end - i;
+            freeRunsByLength.merge(Long.highestOneBit(length), 1L, Long::sum);
+            largestFreeRun = Math.max(largestFreeRun, length);
+            i = end;
+        }
+
+        return new FileSystemStatistics(files.size(), fragmentedFileCount, runCount, maxRunsPerFile,
+                getNextAvailableBlockNumber(), header.getUsedBlocks().size(), freeBlocks.length, largestFreeRun,
+                freeRunsByLength, metadataSize);
+    }
+
+    private static void collectFiles(final DirectoryNode directory, final List<FileNode> files) {
+        for (final FileSystemNode node : directory.getNodes()) {
+            if (node instanceof DirectoryNode) {
+                collectFiles((DirectoryNode) node, files);
+            } else {
+                files.add((FileNode) node);
+            }
+        }
+    }
+
+    public void defragment() throws IOException {
+
+        flushAppendBuffers();
+        releaseReservedBlocks();
+
+        if (!header.getUsedBlocks().isEmpty()) extendToBlockCount(header.getUsedBlocks().lastBlock() + 1);
+
+        for (long lastUsedBlock = header.getUsedBlocks().lastBlock(); lastUsedBlock >= 0; lastUsedBlock--) {
+
+            final FileNode file = header.getUsedBlocks().get(lastUsedBlock);
+            if (file == null) continue;
+
+            // A metadata page can only move within the first container file
+            final boolean isMetadata = file == header.getMetadata();
+            final long freeBlockNumber = isMetadata
+                    ? header.getFreeBlocks().removeFromMember(0, containerFiles.length)
+                    : header.getFreeBlocks().isEmpty() ? -1 : header.getFreeBlocks().remove();
+            if (freeBlockNumber < 0 || freeBlockNumber > lastUsedBlock) {
+                if (freeBlockNumber >= 0) header.getFreeBlocks().add(freeBlockNumber);
+                if (isMetadata) continue;
+                break;
+            }
+
+            final BlockList fileBlocks = getOwnerBlocks(file, lastUsedBlock);
+            final int blockIndex = findBlockIndex(lastUsedBlock, fileBlocks);
+
+            readVerifiedBlock(lastUsedBlock, 0, bytes, 0, BLOCK_SIZE);
+
+            // The published and the durable superblock refer to the moved block until the next flush and sync,
+            // so it is only released; the free tail of the container is trimmed once it is free
+            releaseBlock(lastUsedBlock);
+            header.getUsedBlocks().put(freeBlockNumber, file);
+            writeToBlock(freeBlockNumber, 0, bytes, 0, BLOCK_SIZE);
+
+            fileBlocks.set(blockIndex, freeBlockNumber);
+            if (isMetadata) {
+                metadataTableMoved = true;
+            } else {
+                changed(file);
+            }
+        }
+    }
+
+    private void setBlockCount(final long blockCount) throws IOException {
+        for (int i = 0; i < containerFiles.length; i++) {
+            setMemberSize(i, getMemberLength(i, blockCount));
+        }
+    }
+
+    private BlockList getOwnerBlocks(final FileNode file, final long block) {
+        final boolean isTablePage = file == header.getMetadata() && header.getMetadataTable().indexOf(block) >= 0;
+        return isTablePage ? header.getMetadataTable() : file.getBlocks();
+    }
+
+    private static int findBlockIndex(final long lastUsedBlock, final BlockList blocks) {
+
+        final int blockIndex = blocks.indexOf(lastUsedBlock);
+        if (blockIndex >= 0) return blockIndex;
+
+        throw new RuntimeException("Could not find the block index " + lastUsedBlock);
+    }
+
+    // Writes the metadata log into its pages from a position on, leaving the bytes before it untouched
+    private final class PageOutputStream extends OutputStream {
+
+        private final BlockList pages;
+        private final byte[] page = new byte[BLOCK_SIZE];
+        private long position;
+        private int flushedInPage;
+
+        private PageOutputStream(final BlockList pages, final long position) {
+            this.pages = pages;
+            this.position = position;
+            this.flushedInPage = (int) (position % BLOCK_SIZE);
+        }
+
+        private long getPosition() {
+            return position;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            page[(int) (position++ % BLOCK_SIZE)] = (byte) b;
+            if (position % BLOCK_SIZE == 0) writePage();
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            for (int written = 0; written < len; ) {
+                final int offsetInPage = (int) (position % BLOCK_SIZE);
+                final int length = Math.min(len - written, BLOCK_SIZE - offsetInPage);
+                System.arraycopy(b, off + written, page, offsetInPage, length);
+                position += length;
+                written += length;
+                if (position % BLOCK_SIZE == 0) writePage();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (position % BLOCK_SIZE != flushedInPage) writePage();
+        }
+
+        private void writePage() throws IOException {
+
+            final int pageIndex = (int) ((position - 1) / BLOCK_SIZE);
+            final int end = (int) ((position - 1) % BLOCK_SIZE) + 1;
+
+            // The pages of an attempt that failed are reused
+            if (pageIndex == pages.size()) pages.add(allocateMetadataPage());
+            writeToBlock(pages.get(pageIndex), flushedInPage, page, flushedInPage, end - flushedInPage);
+
+            flushedInPage = end % BLOCK_SIZE;
+        }
+    }
+
+    private final class PageInputStream extends InputStream {
+
+        private final BlockList pages;
+        private final long size;
+        private final byte[] page = new byte[BLOCK_SIZE];
+        private long position;
+
+        private PageInputStream(final BlockList pages, final long size) {
+            this.pages = pages;
+            this.size = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position >= size) return -1;
+
+            readPage();
+            return page[(int) (position++ % BLOCK_SIZE)] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) return 0;
+            if (position >= size) return -1;
+
+            readPage();
+            final int offsetInPage = (int) (position % BLOCK_SIZE);
+            final int length = (int) Math.min(Math.min(len, BLOCK_SIZE - offsetInPage), size - position);
+            System.arraycopy(page, offsetInPage, b, off, length);
+            position += length;
+
+            return length;
+        }
+
+        private void readPage() throws IOException {
+            if (position % BLOCK_SIZE != 0) return;
+
+            final int length = (int) Math.min(BLOCK_SIZE, size - position);
+            readFromBlock(pages.get((int) (position / BLOCK_SIZE)), 0, page, 0, length);
+        }
     }
 }
@@ -1,33 +1,81 @@
 package com.jetbrains.filesystem;
 
+import com.jetbrains.filesystem.nodes.BlockList;
 import com.jetbrains.filesystem.nodes.DirectoryNode;
 import com.jetbrains.filesystem.nodes.FileNode;
+import com.jetbrains.filesystem.nodes.NameIndex;
 
 import java.io.Serializable;
-import java.util.PriorityQueue;
-import java.util.TreeMap;
+import java.util.HashSet;
+import java.util.Set;
 
 public class FileHeader implements Serializable {
 
     private final DirectoryNode root;
-    private final PriorityQueue<Long> freeBlocks;
-    private final TreeMap<Long, FileNode> usedBlocks;
+    private final FreeBlocks freeBlocks;
+    private final FreeBlocks deferredFreeBlocks;
+    private final FreeBlocks releasedBlocks;
+    private final FreeBlocks unsyncedBlocks;
+    private final BlockOwners usedBlocks;
+    private final FileNode metadata;
+    private final BlockList metadataTable;
+    private final Set<FileNode> filesWithReservedBlocks;
+    private final NameIndex nameIndex;
 
     public FileHeader(final DirectoryNode root) {
+        this(root, new BlockOwners());
+    }
+
+    public FileHeader(final DirectoryNode root, final BlockOwners usedBlocks) {
         this.root = root;
-        this.freeBlocks = new PriorityQueue<>();
-        this.usedBlocks = new TreeMap<>();
+        this.freeBlocks = new FreeBlocks();
+        this.deferredFreeBlocks = new FreeBlocks();
+        this.releasedBlocks = new FreeBlocks();
+        this.unsyncedBlocks = new FreeBlocks();
+        this.usedBlocks = usedBlocks;
+        this.metadata = new FileNode("");
+        this.metadataTable = new BlockList();
+        this.filesWithReservedBlocks = new HashSet<>();
+        this.nameIndex = new NameIndex();
     }
 
     public DirectoryNode getRoot() {
         return root;
     }
 
-    public PriorityQueue<Long> getFreeBlocks() {
+    public FreeBlocks getFreeBlocks() {
         return freeBlocks;
     }
 
-    public TreeMap<Long, FileNode> getUsedBlocks() {
+    public FreeBlocks getDeferredFreeBlocks() {
+        return deferredFreeBlocks;
+    }
+
+    public FreeBlocks getReleasedBlocks() {
+        return releasedBlocks;
+    }
+
+    public FreeBlocks getUnsyncedBlocks() {
+        return unsyncedBlocks;
+    }
+
+    public BlockOwners getUsedBlocks() {
         return usedBlocks;
     }
+
+    public FileNode getMetadata() {
+        return metadata;
+    }
+
+    public BlockList getMetadataTable() {
+        return metadataTable;
+    }
+
+    public Set<FileNode> getFilesWithReservedBlocks() {
+        return filesWithReservedBlocks;
+    }
+
+    public NameIndex getNameIndex() {
+        return nameIndex;
+    }
 }
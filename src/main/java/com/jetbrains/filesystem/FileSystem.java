@@ -5,31 +5,189 @@ import com.jetbrains.filesystem.nodes.FileNode;
 import com.jetbrains.filesystem.nodes.FileSystemNode;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class FileSystem implements AutoCloseable {
 
     private final FileHandler fileHandler;
+    private final SyncWorker syncWorker;
+    private final boolean readOnly;
+    private final int readAheadBlocks;
+    private IOException appendFlushFailure;
+    private boolean closed;
 
     public FileSystem(final String fileName) throws Exception {
-        fileHandler = new FileHandler(fileName);
+        this(fileName, new FileSystemOptions());
     }
 
-    public void deleteFileSystem() throws Exception {
+    public FileSystem(final String fileName, final FileSystemOptions options) throws Exception {
+        this(fileName, options, sync -> sync);
+    }
+
+    // The sync of the container files can be wrapped, e.g. to count the syncs
+    FileSystem(final String fileName,
+               final FileSystemOptions options,
+               final UnaryOperator<SyncWorker.SyncAction> syncWrapper) throws Exception {
+        fileHandler = new FileHandler(fileName, options);
+        readOnly = options.isReadOnly();
+        readAheadBlocks = options.getReadAheadBlocks();
+        final SyncWorker.SyncAction force = syncWrapper.apply(fileHandler::sync);
+        syncWorker = new SyncWorker(() -> syncDurably(force), readOnly ? Durability.NONE : options.getDurability(),
+                options.getSyncIntervalMillis(), () -> {
+            synchronized (this) {
+                notifyAll();
+            }
+        });
+
+        if (!readOnly && options.getAppendBufferSize() > 0 && options.getAppendFlushDelayMillis() > 0
+                && options.getDurability() != Durability.COMMIT) {
+            final Thread appendFlusher = new Thread(this::flushExpiredAppends, "filesystem-append-flush");
+            appendFlusher.setDaemon(true);
+            appendFlusher.start();
+        }
+    }
+
+    // The log and the data are forced before the durable superblock refers to them, and the blocks that the previous
+    // durable superblock referred to are only reused once the new one is forced as well
+    private void syncDurably(final SyncWorker.SyncAction force) throws IOException {
+
+        final FileHandler.DurableState state;
+        synchronized (this) {
+            state = fileHandler.prepareDurableState();
+        }
+
+        force.run();
+        fileHandler.writeDurableState(state);
+        force.run();
+
+        synchronized (this) {
+            fileHandler.completeDurableState(state);
+        }
+    }
+
+    private synchronized void flushExpiredAppends() {
+        try {
+            while (!closed) {
+
+                try {
+                    if (fileHandler.flushExpiredAppendBuffers()) commit();
+                } catch (IOException e) {
+                    appendFlushFailure = e;
+                }
+
+                final long deadline = fileHandler.getAppendFlushDeadline();
+                wait(deadline == Long.MAX_VALUE ? 0 : Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // A failed background flush is reported once, to the next caller that appends or flushes
+    private void checkAppendFlushFailure() throws IOException {
+
+        final IOException failure = appendFlushFailure;
+        appendFlushFailure = null;
+
+        if (failure != null) throw new IOException("Could not flush the buffered appends", failure);
+    }
+
+    public synchronized void deleteFileSystem() throws Exception {
+        checkWritable();
+
         close();
         fileHandler.deleteContainerFile();
     }
 
     @Override
-    public void close() throws Exception {
+    public synchronized void close() throws Exception {
+        if (closed) return;
+
+        closed = true;
+        if (!readOnly) {
+            final boolean appendsFlushed = fileHandler.flushAppendBuffers();
+            final boolean reservationsReleased = fileHandler.releaseReservedBlocks();
+            if (appendsFlushed || reservationsReleased) fileHandler.flushHeaders();
+        }
+
+        syncWorker.close();
         fileHandler.close();
+        notifyAll();
+    }
+
+    private void commit() throws IOException {
+        fileHandler.flushHeaders();
+        awaitSync();
+    }
+
+    private void awaitSync() throws IOException {
+        awaitSync(syncWorker.requestSync());
+    }
+
+    private void awaitSync(final long sequence) throws IOException {
+        try {
+            while (!syncWorker.isSynced(sequence)) wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the container file to be synced");
+        }
+    }
+
+    public synchronized long getGeneration() {
+        return fileHandler.getGeneration();
+    }
+
+    public synchronized long exportChanges(final long sinceGeneration, final OutputStream output) throws IOException {
+
+        flush();
+
+        fileHandler.exportChanges(sinceGeneration, output);
+        return fileHandler.getGeneration();
+    }
+
+    public synchronized void applyChanges(final InputStream input) throws Exception {
+
+        checkWritable();
+
+        // A sync that is still running could make the replaced header durable after the delta
+        awaitSync(syncWorker.requestImmediateSync());
+        awaitUnpinnedBlocks();
+
+        fileHandler.applyChanges(input);
+        awaitSync();
+    }
+
+    public synchronized boolean refresh() throws Exception {
+        return fileHandler.refresh();
+    }
+
+    private void checkWritable() {
+        if (readOnly) throw new RuntimeException("The file system is read-only");
     }
 
     private void validatePath(final String path) {
         if (!path.startsWith("/")) throw new RuntimeException("The path does not start with '/'");
     }
 
-    public void createDirectory(final String path) throws IOException {
+    public synchronized void createDirectory(final String path) throws IOException {
+
+        checkWritable();
 
         validatePath(path);
 
@@ -44,28 +202,38 @@ public class FileSystem implements AutoCloseable {
         }
 
         final DirectoryNode newDirectory = new DirectoryNode(newDirectoryName);
-        parentDirectory.add(newDirectory);
+        fileHandler.addNode(parentDirectory, newDirectory);
 
-        fileHandler.flushHeaders();
+        commit();
     }
 
-    public Set<String> getDirectoryContents(final String path) {
+    public synchronized Set<String> getDirectoryContents(final String path) {
 
         validatePath(path);
 
-        final String[] directories = path.split("/");
+        return getLastDirectory(path.split("/")).getContents();
+    }
 
-        DirectoryNode currentDirectory = fileHandler.getRoot();
-        for (int i = 1; i < directories.length; i++) {
+    public synchronized List<String> list(final String path, final String afterName, final int limit) {
 
-            final String directoryName = directories[i];
-            currentDirectory = currentDirectory.getDirectory(directoryName);
-        }
+        validatePath(path);
 
-        return currentDirectory.getContents();
+        return getLastDirectory(path.split("/")).list(afterName, limit);
     }
 
-    public void removeDirectory(final String path) throws IOException {
+    public synchronized List<String> listByPrefix(final String path,
+                                     final String prefix,
+                                     final String afterName,
+                                     final int limit) {
+
+        validatePath(path);
+
+        return getLastDirectory(path.split("/")).listByPrefix(prefix, afterName, limit);
+    }
+
+    public synchronized void removeDirectory(final String path) throws IOException {
+
+        checkWritable();
 
         validatePath(path);
 
@@ -75,9 +243,9 @@ public class FileSystem implements AutoCloseable {
 
         if (!directoryToRemove.isEmpty()) throw new RuntimeException(directoryToRemove.getName() + " is not empty");
 
-        parentDirectory.remove(directoryToRemove.getName());
+        fileHandler.removeNode(parentDirectory, directoryToRemove);
 
-        fileHandler.flushHeaders();
+        commit();
     }
 
     private DirectoryNode getPenultimateNode(final String[] namesOfDirectories) {
@@ -104,7 +272,9 @@ public class FileSystem implements AutoCloseable {
         return parentDirectory;
     }
 
-    public void createFile(final String path) throws IOException {
+    public synchronized void createFile(final String path) throws IOException {
+
+        checkWritable();
 
         validatePath(path);
 
@@ -119,12 +289,14 @@ public class FileSystem implements AutoCloseable {
         }
 
         final FileNode newFile = new FileNode(newFileName);
-        parentDirectory.add(newFile);
+        fileHandler.addNode(parentDirectory, newFile);
 
-        fileHandler.flushHeaders();
+        commit();
     }
 
-    public void removeFile(final String path) throws IOException {
+    public synchronized void removeFile(final String path) throws IOException {
+
+        checkWritable();
 
         validatePath(path);
 
@@ -132,13 +304,15 @@ public class FileSystem implements AutoCloseable {
         final DirectoryNode parentDirectory = getPenultimateNode(directories);
         final FileNode fileToRemove = parentDirectory.getFile(directories[directories.length - 1]);
 
-        parentDirectory.remove(fileToRemove.getName());
+        fileHandler.removeNode(parentDirectory, fileToRemove);
         fileHandler.removeFile(fileToRemove);
 
-        fileHandler.flushHeaders();
+        commit();
     }
 
-    public void rename(final String path, final String newName) throws IOException {
+    public synchronized void rename(final String path, final String newName) throws IOException {
+
+        checkWritable();
 
         validatePath(path);
 
@@ -150,14 +324,16 @@ public class FileSystem implements AutoCloseable {
         if (parentDirectory.contains(newName)) throw new RuntimeException(newName + " already exists");
 
         final FileSystemNode lastNode = parentDirectory.getNode(directories[directories.length - 1]);
-        parentDirectory.remove(lastNode.getName());
+        fileHandler.removeNode(parentDirectory, lastNode);
         lastNode.rename(newName);
-        parentDirectory.add(lastNode);
+        fileHandler.addNode(parentDirectory, lastNode);
 
-        fileHandler.flushHeaders();
+        commit();
     }
 
-    public void move(final String path, final String newPath) throws IOException {
+    public synchronized void move(final String path, final String newPath) throws IOException {
+
+        checkWritable();
 
         validatePath(path);
 
@@ -165,18 +341,24 @@ public class FileSystem implements AutoCloseable {
         final DirectoryNode parentDirectory = getPenultimateNode(namesOfDirectories);
 
         final FileSystemNode nodeToMove = parentDirectory.getNode(namesOfDirectories[namesOfDirectories.length - 1]);
-        parentDirectory.remove(nodeToMove.getName());
 
         validatePath(newPath);
 
         final String[] namesOfNewDirectories = newPath.split("/");
         final DirectoryNode lastDirectory = getLastDirectory(namesOfNewDirectories);
-        lastDirectory.add(nodeToMove);
 
-        fileHandler.flushHeaders();
+        if (lastDirectory.contains(nodeToMove.getName()))
+            throw new RuntimeException(nodeToMove.getName() + " already exists in " + newPath);
+
+        fileHandler.removeNode(parentDirectory, nodeToMove);
+        fileHandler.addNode(lastDirectory, nodeToMove);
+
+        commit();
     }
 
-    public void writeToFile(final String path, final byte[] contents) throws IOException {
+    public synchronized void writeToFile(final String path, final byte[] contents) throws IOException {
+
+        checkWritable();
 
         validatePath(path);
 
@@ -186,10 +368,12 @@ public class FileSystem implements AutoCloseable {
         final FileNode file = parentDirectory.getFile(nodeNames[nodeNames.length - 1]);
 
         fileHandler.writeToFile(file, contents);
-        fileHandler.flushHeaders();
+        commit();
     }
 
-    public void appendToFile(final String path, final byte[] contents) throws IOException {
+    public synchronized void appendToFile(final String path, final byte[] contents) throws IOException {
+
+        checkWritable();
 
         validatePath(path);
 
@@ -198,23 +382,85 @@ public class FileSystem implements AutoCloseable {
 
         final FileNode file = parentDirectory.getFile(nodeNames[nodeNames.length - 1]);
 
-        fileHandler.appendToFile(file, contents);
-        fileHandler.flushHeaders();
+        checkAppendFlushFailure();
+
+        final long flushDeadline = fileHandler.getAppendFlushDeadline();
+        if (fileHandler.bufferAppend(file, contents)) commit();
+        if (fileHandler.getAppendFlushDeadline() < flushDeadline) notifyAll();
     }
 
-    public long getFileSize(final String path) {
+    public synchronized void flush(final String path) throws IOException {
+        checkAppendFlushFailure();
+
+        if (fileHandler.flushAppendBuffer(getFile(path))) commit();
+    }
+
+    public synchronized void flush() throws IOException {
+        checkAppendFlushFailure();
+
+        if (fileHandler.flushAppendBuffers()) commit();
+    }
+
+    public synchronized void writeToFile(final String path, final long position, final byte[] contents)
+            throws IOException {
+
+        checkWritable();
+
+        fileHandler.write(getFile(path), position, contents);
+        commit();
+    }
+
+    public synchronized void truncate(final String path, final long size) throws IOException {
+
+        checkWritable();
+
+        fileHandler.truncate(getFile(path), size);
+        commit();
+    }
+
+    public synchronized void punchHole(final String path, final long position, final long length) throws IOException {
+
+        checkWritable();
+
+        fileHandler.punchHole(getFile(path), position, length);
+        commit();
+    }
+
+    public synchronized void preallocate(final String path, final long size) throws IOException {
+
+        checkWritable();
+
+        fileHandler.preallocate(getFile(path), size);
+        commit();
+    }
+
+    public synchronized void setGrowthHint(final String path, final long growthHint) throws IOException {
+
+        checkWritable();
+
+        fileHandler.setGrowthHint(getFile(path), growthHint);
+        commit();
+    }
+
+    public synchronized long getReservedSize(final String path) {
+        return fileHandler.getReservedSize(getFile(path));
+    }
+
+    public synchronized long getAllocatedSize(final String path) {
+        return fileHandler.getAllocatedSize(getFile(path));
+    }
+
+    private FileNode getFile(final String path) {
 
         validatePath(path);
 
         final String[] nodeNames = path.split("/");
         final DirectoryNode parentDirectory = getPenultimateNode(nodeNames);
 
-        final FileNode file = parentDirectory.getFile(nodeNames[nodeNames.length - 1]);
-
-        return file.getSize();
+        return parentDirectory.getFile(nodeNames[nodeNames.length - 1]);
     }
 
-    public byte[] readFile(final String path) throws IOException {
+    public synchronized long getFileSize(final String path) {
 
         validatePath(path);
 
@@ -223,10 +469,332 @@ public class FileSystem implements AutoCloseable {
 
         final FileNode file = parentDirectory.getFile(nodeNames[nodeNames.length - 1]);
 
-        return fileHandler.read(file);
+        return fileHandler.getSize(file);
+    }
+
+    public synchronized byte[] readFile(final String path) throws IOException {
+
+        validatePath(path);
+
+        return readCurrent(() -> {
+            final String[] nodeNames = path.split("/");
+            final DirectoryNode parentDirectory = getPenultimateNode(nodeNames);
+
+            return fileHandler.read(parentDirectory.getFile(nodeNames[nodeNames.length - 1]));
+        });
+    }
+
+    public synchronized Map<String, byte[]> readFiles(final Collection<String> paths) throws IOException {
+        return readCurrent(() -> readFilesOnce(paths));
+    }
+
+    private Map<String, byte[]> readFilesOnce(final Collection<String> paths) throws IOException {
+
+        final Map<String, FileNode> files = new LinkedHashMap<>();
+        for (final String path : paths) {
+            files.put(path, getFile(path));
+        }
+
+        final List<byte[]> contents = fileHandler.readFiles(new ArrayList<>(files.values()));
+
+        final Map<String, byte[]> results = new LinkedHashMap<>();
+        int i = 0;
+        for (final String path : files.keySet()) {
+            results.put(path, contents.get(i++));
+        }
+
+        return results;
+    }
+
+    public synchronized FileSystemInputStream openInputStream(final String path) {
+        return openInputStream(path, readAheadBlocks);
+    }
+
+    public synchronized FileSystemInputStream openInputStream(final String path, final int readAheadBlocks) {
+        return new FileSystemInputStream(this, getFile(path), new ReadAhead(readAheadBlocks));
+    }
+
+    synchronized int read(final FileNode file,
+                          final long position,
+                          final byte[] destination,
+                          final int offset,
+                          final int length,
+                          final ReadAhead readAhead) throws IOException {
+
+        return readCurrent(() -> {
+
+            final FileNode currentFile = getCurrentNode(file);
+            final int read = fileHandler.read(currentFile, position, destination, offset, length);
+            if (read <= 0) return read;
+
+            final long[] range = readAhead.nextRange(position, read, fileHandler.getSize(currentFile));
+            if (range != null) fileHandler.prefetch(currentFile, range[0], range[1]);
+
+            return read;
+        });
+    }
+
+    // A read-only file system replaces all nodes when it loads a newer header, so a node is looked up again by path
+    private FileNode getCurrentNode(final FileNode file) throws IOException {
+
+        if (file.isDescendantOf(fileHandler.getRoot())) return file;
+        if (!readOnly) throw new IOException(file.getName() + " no longer exists");
+
+        return getFile(file.getPath());
+    }
+
+    // A read-only file system reads the blocks of the header it has loaded; once the writer publishes a newer one,
+    // those blocks may be reused, so the read is repeated on the newer header. A mapping of a container file that
+    // the writer truncated meanwhile faults with an InternalError, which the JVM may raise a bit after the access
+    private <T> T readCurrent(final ReadOperation<T> operation) throws IOException {
+        while (true) {
+            try {
+                final T result = operation.read();
+                if (fileHandler.isCurrent()) return result;
+            } catch (IOException | RuntimeException | InternalError e) {
+                if (!readOnly || fileHandler.isCurrent()) throw e;
+            }
+
+            try {
+                fileHandler.refresh();
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Could not refresh the header", e);
+            }
+        }
+    }
+
+    private interface ReadOperation<T> {
+        T read() throws IOException;
+    }
+
+    public synchronized void importTree(final Path hostDirectory, final String path) throws IOException {
+
+        checkWritable();
+
+        validatePath(path);
+
+        // The imported tree is staged in detached nodes and only merged into the file system once every file
+        // is copied, so a failed import leaves the file system as it was
+        final DirectoryNode directory = getLastDirectory(path.split("/"));
+        final DirectoryNode importedDirectory = new DirectoryNode(directory.getName());
+        final Map<FileNode, Path> files = new LinkedHashMap<>();
+        collectHostFiles(hostDirectory, directory, importedDirectory, files);
+
+        fileHandler.importFiles(files);
+        mergeImportedNodes(importedDirectory, directory);
+        commit();
     }
 
-    public void defragment() throws IOException {
+    // Symbolic links and special files are skipped, so a link to an ancestor cannot make the import recurse forever
+    private static void collectHostFiles(final Path hostDirectory,
+                                         final DirectoryNode directory,
+                                         final DirectoryNode importedDirectory,
+                                         final Map<FileNode, Path> files) throws IOException {
+
+        try (final Stream<Path> entries = Files.list(hostDirectory)) {
+
+            for (final Path entry : (Iterable<Path>) entries.sorted()::iterator) {
+
+                final String name = entry.getFileName().toString();
+
+                if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                    if (directory != null && directory.isFile(name))
+                        throw new RuntimeException(name + " exists and it is a file");
+
+                    final DirectoryNode importedSubdirectory = new DirectoryNode(name);
+                    importedDirectory.add(importedSubdirectory);
+                    final DirectoryNode subdirectory = directory != null && directory.contains(name)
+                            ? directory.getDirectory(name) : null;
+                    collectHostFiles(entry, subdirectory, importedSubdirectory, files);
+                } else if (Files.isRegularFile(entry, LinkOption.NOFOLLOW_LINKS)) {
+                    if (directory != null && directory.isDirectory(name))
+                        throw new RuntimeException(name + " exists and it is a directory");
+
+                    final FileNode file = new FileNode(name);
+                    importedDirectory.add(file);
+                    files.put(file, entry);
+                }
+            }
+        }
+    }
+
+    private void mergeImportedNodes(final DirectoryNode importedDirectory, final DirectoryNode directory) {
+
+        for (final FileSystemNode node : new ArrayList<>(importedDirectory.getNodes())) {
+
+            final String name = node.getName();
+            if (node instanceof DirectoryNode) {
+                if (!directory.contains(name)) fileHandler.addNode(directory, new DirectoryNode(name));
+                mergeImportedNodes((DirectoryNode) node, directory.getDirectory(name));
+                continue;
+            }
+
+            if (directory.contains(name)) {
+                final FileNode replacedFile = directory.getFile(name);
+                fileHandler.removeNode(directory, replacedFile);
+                fileHandler.removeFile(replacedFile);
+            }
+            importedDirectory.remove(name);
+            fileHandler.addNode(directory, node);
+        }
+    }
+
+    // The matching paths are collected into a list while the file system is locked, so the scan of the name index
+    // holds the lock and the list costs memory for every match; the returned stream is a snapshot that can be
+    // consumed while the file system is modified. A very broad pattern on a large tree should be narrowed instead.
+    public synchronized Stream<String> find(final String path, final String globOrPrefix) {
+
+        validatePath(path);
+
+        final DirectoryNode directory = getLastDirectory(path.split("/"));
+
+        final List<String> paths = fileHandler.getNameIndex().find(globOrPrefix)
+                .filter(node -> node != directory && node.isDescendantOf(directory))
+                .map(FileSystemNode::getPath)
+                .collect(Collectors.toList());
+
+        return paths.stream();
+    }
+
+    public void transferTo(final String path, final WritableByteChannel target) throws IOException {
+
+        final FileTransfer transfer;
+        synchronized (this) {
+            transfer = fileHandler.prepareTransfer(getFile(path));
+            fileHandler.pinBlocks();
+        }
+
+        try {
+            transfer.transferTo(target);
+        } finally {
+            unpinBlocks();
+        }
+
+        checkUnchangedDuringTransfer(path);
+    }
+
+    // The bytes are already streamed, so a transfer of a read-only file system can only report that they are stale
+    private synchronized void checkUnchangedDuringTransfer(final String path) throws IOException {
+        if (!fileHandler.isCurrent()) throw new IOException(path + " was changed by the writer during the transfer");
+    }
+
+    private synchronized void unpinBlocks() {
+        fileHandler.unpinBlocks();
+        notifyAll();
+    }
+
+    private void awaitUnpinnedBlocks() throws InterruptedIOException {
+        try {
+            while (fileHandler.hasPinnedBlocks()) wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the running transfers");
+        }
+    }
+
+    public void transferFrom(final ReadableByteChannel source, final String path) throws IOException {
+
+        final FileUpload upload;
+        synchronized (this) {
+            checkWritable();
+            upload = fileHandler.prepareUpload(getFile(path));
+            fileHandler.pinBlocks();
+        }
+
+        boolean published = false;
+        try {
+            while (!upload.isComplete()) {
+                synchronized (this) {
+                    fileHandler.reserveUploadChunk(upload);
+                }
+                upload.receive(source);
+            }
+
+            synchronized (this) {
+                final FileNode file = upload.getFile();
+                if (!file.isDescendantOf(fileHandler.getRoot()))
+                    throw new IOException(file.getName() + " was removed during the transfer");
+
+                fileHandler.publishUpload(upload);
+                published = true;
+                commit();
+            }
+        } finally {
+            synchronized (this) {
+                try {
+                    if (!published) fileHandler.abortUpload(upload);
+                } finally {
+                    unpinBlocks();
+                }
+            }
+        }
+    }
+
+    public void exportTree(final String path, final Path hostDirectory) throws IOException {
+
+        final Map<Path, FileTransfer> transfers = new LinkedHashMap<>();
+        synchronized (this) {
+
+            validatePath(path);
+
+            final Map<Path, FileNode> files = new LinkedHashMap<>();
+            collectContainerFiles(getLastDirectory(path.split("/")), hostDirectory, files);
+
+            for (final Map.Entry<Path, FileNode> entry : files.entrySet()) {
+                transfers.put(entry.getKey(), fileHandler.prepareTransfer(entry.getValue()));
+            }
+            fileHandler.pinBlocks();
+        }
+
+        try {
+            fileHandler.exportFiles(transfers);
+        } finally {
+            unpinBlocks();
+        }
+
+        checkUnchangedDuringTransfer(path);
+    }
+
+    private static void collectContainerFiles(final DirectoryNode directory,
+                                              final Path hostDirectory,
+                                              final Map<Path, FileNode> files) throws IOException {
+
+        Files.createDirectories(hostDirectory);
+
+        for (final FileSystemNode node : directory.getNodes()) {
+
+            final Path entry = hostDirectory.resolve(node.getName());
+            if (node instanceof DirectoryNode) {
+                collectContainerFiles((DirectoryNode) node, entry, files);
+            } else {
+                files.put(entry, (FileNode) node);
+            }
+        }
+    }
+
+    public synchronized FileSystemStatistics getStatistics() throws IOException {
+        return fileHandler.getStatistics();
+    }
+
+    public ScrubReport scrub() {
+        return scrub(0);
+    }
+
+    public ScrubReport scrub(final long maxBytesPerSecond) {
+        return new Scrubber(fileHandler, this, maxBytesPerSecond).run();
+    }
+
+    public synchronized void defragment() throws IOException {
+        checkWritable();
+
+        // The freed blocks can only be filled once no superblock refers to them anymore
+        fileHandler.flushHeaders();
+        awaitSync(syncWorker.requestImmediateSync());
+        awaitUnpinnedBlocks();
+
         fileHandler.defragment();
+        commit();
     }
 }
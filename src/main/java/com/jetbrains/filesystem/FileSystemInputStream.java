@@ -0,0 +1,70 @@
+package com.jetbrains.filesystem;
+
+import com.jetbrains.filesystem.nodes.FileNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+public class FileSystemInputStream extends InputStream {
+
+    private final FileSystem fileSystem;
+    private final FileNode file;
+    private final ReadAhead readAhead;
+    private long position;
+    private boolean closed;
+
+    FileSystemInputStream(final FileSystem fileSystem, final FileNode file, final ReadAhead readAhead) {
+        this.fileSystem = fileSystem;
+        this.file = file;
+        this.readAhead = readAhead;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] singleByte = new byte[1];
+        return read(singleByte, 0, 1) < 0 ? -1 : singleByte[0] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] destination, final int offset, final int length) throws IOException {
+
+        Objects.checkFromIndexSize(offset, length, destination.length);
+        if (closed) throw new IOException("The stream is closed");
+        if (length == 0) return 0;
+
+        final int read = fileSystem.read(file, position, destination, offset, length, readAhead);
+        if (read > 0) position += read;
+
+        return read;
+    }
+
+    @Override
+    public long skip(final long count) throws IOException {
+        if (closed) throw new IOException("The stream is closed");
+        if (count <= 0) return 0;
+
+        position += count;
+        return count;
+    }
+
+    public void seek(final long position) throws IOException {
+        if (closed) throw new IOException("The stream is closed");
+        if (position < 0) throw new RuntimeException("The position must not be negative");
+
+        this.position = position;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public int getReadAheadWindow() {
+        return readAhead.getWindowBlocks();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
@@ -0,0 +1,95 @@
+package com.jetbrains.filesystem;
+
+import java.util.List;
+
+public class FileSystemOptions {
+
+    private int appendBufferSize = 64 * 1024;
+    private long appendFlushDelayMillis = 1000;
+    private Durability durability = Durability.NONE;
+    private long syncIntervalMillis = 1000;
+    private List<String> stripeMembers = List.of();
+    private boolean readOnly;
+    private int readAheadBlocks = 256;
+    private boolean checksums = true;
+
+    public int getAppendBufferSize() {
+        return appendBufferSize;
+    }
+
+    public FileSystemOptions withAppendBufferSize(final int appendBufferSize) {
+        if (appendBufferSize < 0) throw new RuntimeException("The append buffer size must not be negative");
+
+        this.appendBufferSize = appendBufferSize;
+        return this;
+    }
+
+    public long getAppendFlushDelayMillis() {
+        return appendFlushDelayMillis;
+    }
+
+    public FileSystemOptions withAppendFlushDelayMillis(final long appendFlushDelayMillis) {
+        if (appendFlushDelayMillis < 0) throw new RuntimeException("The append flush delay must not be negative");
+
+        this.appendFlushDelayMillis = appendFlushDelayMillis;
+        return this;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public FileSystemOptions withDurability(final Durability durability) {
+        this.durability = durability;
+        return this;
+    }
+
+    public long getSyncIntervalMillis() {
+        return syncIntervalMillis;
+    }
+
+    public FileSystemOptions withSyncIntervalMillis(final long syncIntervalMillis) {
+        if (syncIntervalMillis <= 0) throw new RuntimeException("The sync interval must be positive");
+
+        this.syncIntervalMillis = syncIntervalMillis;
+        return this;
+    }
+
+    public List<String> getStripeMembers() {
+        return stripeMembers;
+    }
+
+    public FileSystemOptions withStripeMembers(final String... fileNames) {
+        this.stripeMembers = List.of(fileNames);
+        return this;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public FileSystemOptions withReadOnly(final boolean readOnly) {
+        this.readOnly = readOnly;
+        return this;
+    }
+
+    public int getReadAheadBlocks() {
+        return readAheadBlocks;
+    }
+
+    public FileSystemOptions withReadAheadBlocks(final int readAheadBlocks) {
+        if (readAheadBlocks < 0) throw new RuntimeException("The read-ahead window must not be negative");
+
+        this.readAheadBlocks = readAheadBlocks;
+        return this;
+    }
+
+    public boolean isChecksumsEnabled() {
+        return checksums;
+    }
+
+    public FileSystemOptions withChecksums(final boolean checksums) {
+        this.checksums = checksums;
+        return this;
+    }
+}
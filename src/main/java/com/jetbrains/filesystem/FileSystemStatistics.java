@@ -0,0 +1,102 @@
+package com.jetbrains.filesystem;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+public class FileSystemStatistics {
+
+    private final long fileCount;
+    private final long fragmentedFileCount;
+    private final long runCount;
+    private final long maxRunsPerFile;
+    private final long containerBlocks;
+    private final long usedBlocks;
+    private final long freeBlocks;
+    private final long largestFreeRun;
+    private final SortedMap<Long, Long> freeRunsByLength;
+    private final long metadataSize;
+
+    public FileSystemStatistics(final long fileCount,
+                                final long fragmentedFileCount,
+                                final long runCount,
+                                final long maxRunsPerFile,
+                                final long containerBlocks,
+                                final long usedBlocks,
+                                final long freeBlocks,
+                                final long largestFreeRun,
+                                final SortedMap<Long, Long> freeRunsByLength,
+                                final long metadataSize) {
+        this.fileCount = fileCount;
+        this.fragmentedFileCount = fragmentedFileCount;
+        this.runCount = runCount;
+        this.maxRunsPerFile = maxRunsPerFile;
+        this.containerBlocks = containerBlocks;
+        this.usedBlocks = usedBlocks;
+        this.freeBlocks = freeBlocks;
+        this.largestFreeRun = largestFreeRun;
+        this.freeRunsByLength = Collections.unmodifiableSortedMap(new TreeMap<>(freeRunsByLength));
+        this.metadataSize = metadataSize;
+    }
+
+    public long getFileCount() {
+        return fileCount;
+    }
+
+    public long getFragmentedFileCount() {
+        return fragmentedFileCount;
+    }
+
+    public long getRunCount() {
+        return runCount;
+    }
+
+    public double getAverageRunsPerFile() {
+        return fileCount == 0 ? 0 : runCount / (double) fileCount;
+    }
+
+    public long getMaxRunsPerFile() {
+        return maxRunsPerFile;
+    }
+
+    public long getContainerBlocks() {
+        return containerBlocks;
+    }
+
+    public long getUsedBlocks() {
+        return usedBlocks;
+    }
+
+    public long getFreeBlocks() {
+        return freeBlocks;
+    }
+
+    public long getLargestFreeRun() {
+        return largestFreeRun;
+    }
+
+    public SortedMap<Long, Long> getFreeRunsByLength() {
+        return freeRunsByLength;
+    }
+
+    public long getMetadataSize() {
+        return metadataSize;
+    }
+
+    @Override
+    public String toString() {
+
+        final StringBuilder freeRuns = new StringBuilder();
+        for (final Map.Entry<Long, Long> entry : freeRunsByLength.entrySet()) {
+            if (freeRuns.length() > 0) freeRuns.append(", ");
+            freeRuns.append(entry.getKey()).append("+: ").append(entry.getValue());
+        }
+
+        return String.format("files=%d fragmented=%d runs/file=%.2f max runs=%d"
+                        + " blocks(container=%d used=%d free=%d largest free run=%d) free runs by length={%s}"
+                        + " metadata=%d bytes",
+                fileCount, fragmentedFileCount, getAverageRunsPerFile(), maxRunsPerFile,
+                containerBlocks, usedBlocks, freeBlocks, largestFreeRun, freeRuns, metadataSize);
+    }
+}
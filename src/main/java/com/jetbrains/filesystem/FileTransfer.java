@@ -0,0 +1,118 @@
+package com.jetbrains.filesystem;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+class FileTransfer {
+
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final byte[] ZEROS = new byte[FileHandler.BLOCK_SIZE];
+
+    private final FileHandler fileHandler;
+    // Every run is {member, position, length}, a negative member is a hole
+    private final List<long[]> runs;
+    private final long storedSize;
+    private final byte[] bufferedContents;
+
+    FileTransfer(final FileHandler fileHandler, final long storedSize, final byte[] bufferedContents) {
+        this.fileHandler = fileHandler;
+        this.runs = new ArrayList<>();
+        this.storedSize = storedSize;
+        this.bufferedContents = bufferedContents;
+    }
+
+    void addRun(final int member, final long position, final long length) {
+        runs.add(new long[]{member, position, length});
+    }
+
+    void transferTo(final WritableByteChannel target) throws IOException {
+
+        for (final long[] run : runs) {
+            if (run[0] < 0) {
+                for (long written = 0; written < run[2]; ) {
+                    final int bytesToWrite = (int) Math.min(ZEROS.length, run[2] - written);
+                    writeFully(target, ByteBuffer.wrap(ZEROS, 0, bytesToWrite));
+                    written += bytesToWrite;
+                }
+            } else {
+                transferRun((int) run[0], run[1], run[2], target);
+            }
+        }
+
+        if (bufferedContents != null) writeFully(target, ByteBuffer.wrap(bufferedContents));
+    }
+
+    void exportTo(final FileChannel target) throws IOException {
+
+        long offset = 0;
+        for (final long[] run : runs) {
+            if (run[0] >= 0) {
+                target.position(offset);
+                transferRun((int) run[0], run[1], run[2], target);
+            }
+            offset += run[2];
+        }
+
+        if (bufferedContents != null) {
+            final ByteBuffer source = ByteBuffer.wrap(bufferedContents);
+            while (source.hasRemaining()) target.write(source, storedSize + source.position());
+        } else if (target.size() < storedSize) {
+            target.write(ByteBuffer.wrap(new byte[1]), storedSize - 1);
+        }
+    }
+
+    private void transferRun(final int member,
+                             final long position,
+                             final long length,
+                             final WritableByteChannel target) throws IOException {
+
+        long backoff = MIN_BACKOFF_NANOS;
+        for (long transferred = 0; transferred < length; ) {
+
+            final long offset = transferred;
+            final long count = fileHandler.onMember(member,
+                    channel -> channel.transferTo(position + offset, length - offset, target));
+            if (count > 0) {
+                transferred += count;
+                backoff = MIN_BACKOFF_NANOS;
+                continue;
+            }
+
+            if (position + transferred >= fileHandler.onMember(member, FileChannel::size))
+                throw new EOFException("The container file ends before the blocks being transferred");
+
+            backoff = waitForTarget(backoff);
+        }
+    }
+
+    private static void writeFully(final WritableByteChannel target, final ByteBuffer source) throws IOException {
+
+        long backoff = MIN_BACKOFF_NANOS;
+        while (source.hasRemaining()) {
+            if (target.write(source) > 0) {
+                backoff = MIN_BACKOFF_NANOS;
+            } else {
+                backoff = waitForTarget(backoff);
+            }
+        }
+    }
+
+    // A non-blocking target accepts nothing while its buffer is full, so wait for it to drain
+    private static long waitForTarget(final long backoff) throws InterruptedIOException {
+
+        if (Thread.currentThread().isInterrupted())
+            throw new InterruptedIOException("Interrupted while waiting for the target channel");
+
+        LockSupport.parkNanos(backoff);
+        return Math.min(MAX_BACKOFF_NANOS, backoff * 2);
+    }
+}
@@ -0,0 +1,120 @@
+package com.jetbrains.filesystem;
+
+import com.jetbrains.filesystem.nodes.BlockList;
+import com.jetbrains.filesystem.nodes.FileNode;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Receives the contents of a file into blocks that are reserved for it, without holding the file system lock;
+// the blocks are only given to the file once the whole source is received
+class FileUpload {
+
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final FileHandler fileHandler;
+    private final FileNode file;
+    private final BlockList blocks;
+    private final byte[] block;
+    private int[] checksums;
+    private long size;
+    private boolean complete;
+
+    FileUpload(final FileHandler fileHandler, final FileNode file) {
+        this.fileHandler = fileHandler;
+        this.file = file;
+        this.blocks = new BlockList();
+        this.block = new byte[FileHandler.BLOCK_SIZE];
+        this.checksums = new int[0];
+    }
+
+    FileNode getFile() {
+        return file;
+    }
+
+    BlockList getBlocks() {
+        return blocks;
+    }
+
+    int getChecksum(final int blockIndex) {
+        return checksums[blockIndex];
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    void addBlocks(final long firstBlock, final int blockCount) {
+        for (int i = 0; i < blockCount; i++) {
+            blocks.add(firstBlock + i);
+        }
+        checksums = Arrays.copyOf(checksums, blocks.size());
+    }
+
+    // Fills the reserved blocks until they are full or the source ends; a non-blocking source that has nothing
+    // to read yet is waited for with a back-off, only -1 ends the upload
+    void receive(final ReadableByteChannel source) throws IOException {
+
+        final ByteBuffer buffer = ByteBuffer.wrap(block);
+        long backoff = MIN_BACKOFF_NANOS;
+
+        while (size < (long) blocks.size() * FileHandler.BLOCK_SIZE) {
+
+            final int count = source.read(buffer);
+            if (count < 0) {
+                complete = true;
+                break;
+            }
+
+            if (count == 0) {
+                backoff = waitForSource(backoff);
+                continue;
+            }
+
+            backoff = MIN_BACKOFF_NANOS;
+            if (!buffer.hasRemaining()) {
+                writeBlock(buffer.position());
+                buffer.clear();
+            }
+        }
+
+        if (complete && buffer.position() > 0) writeBlock(buffer.position());
+    }
+
+    private void writeBlock(final int length) throws IOException {
+
+        Arrays.fill(block, length, block.length, (byte) 0);
+
+        final int blockIndex = (int) (size / FileHandler.BLOCK_SIZE);
+        final long blockNumber = blocks.get(blockIndex);
+        final int member = fileHandler.getMember(blockNumber);
+        final long position = fileHandler.getPosition(blockNumber, 0);
+
+        final ByteBuffer contents = ByteBuffer.wrap(block);
+        while (contents.hasRemaining()) {
+            fileHandler.onMember(member, channel -> channel.write(contents, position + contents.position()));
+        }
+
+        checksums[blockIndex] = FileHandler.checksum(block, 0);
+        size += length;
+    }
+
+    private static long waitForSource(final long backoff) throws InterruptedIOException {
+
+        if (Thread.currentThread().isInterrupted())
+            throw new InterruptedIOException("Interrupted while waiting for the source channel");
+
+        LockSupport.parkNanos(backoff);
+        return Math.min(MAX_BACKOFF_NANOS, backoff * 2);
+    }
+}
@@ -0,0 +1,90 @@
+package com.jetbrains.filesystem;
+
+import java.io.Serializable;
+import java.util.BitSet;
+import java.util.stream.LongStream;
+
+public class FreeBlocks implements Serializable {
+
+    private final BitSet blocks;
+    private int size;
+
+    public FreeBlocks() {
+        this.blocks = new BitSet();
+    }
+
+    public void add(final long block) {
+
+        if (block < 0 || block >= Integer.MAX_VALUE) throw new RuntimeException("Block " + block + " is out of range");
+
+        if (!blocks.get((int) block)) size++;
+        blocks.set((int) block);
+    }
+
+    public long remove() {
+
+        final int block = blocks.nextSetBit(0);
+        if (block < 0) throw new RuntimeException("There are no free blocks");
+
+        blocks.clear(block);
+        size--;
+        return block;
+    }
+
+    // Takes the first run of the given number of free blocks, or returns -1
+    public long removeRun(final int blockCount) {
+
+        for (int first = blocks.nextSetBit(0); first >= 0; ) {
+
+            final int end = blocks.nextClearBit(first);
+            if (end - first >= blockCount) {
+                blocks.clear(first, first + blockCount);
+                size -= blockCount;
+                return first;
+            }
+
+            first = blocks.nextSetBit(end);
+        }
+
+        return -1;
+    }
+
+    public boolean contains(final long block) {
+        return block >= 0 && block < Integer.MAX_VALUE && blocks.get((int) block);
+    }
+
+    // Takes the smallest free block that is stored in the given member of a stripe, or returns -1
+    public long removeFromMember(final int member, final int memberCount) {
+
+        int block = blocks.nextSetBit(0);
+        while (block >= 0 && block % memberCount != member) {
+            block = blocks.nextSetBit(block + (member - block % memberCount + memberCount) % memberCount);
+        }
+        if (block < 0) return -1;
+
+        blocks.clear(block);
+        size--;
+        return block;
+    }
+
+    public void removeFrom(final long firstBlock) {
+
+        if (firstBlock >= blocks.length()) return;
+
+        final int from = (int) Math.max(0, firstBlock);
+        size -= blocks.get(from, blocks.length()).cardinality();
+        blocks.clear(from, blocks.length());
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public LongStream stream() {
+        return blocks.stream().asLongStream();
+    }
+}
@@ -0,0 +1,452 @@
+package com.jetbrains.filesystem;
+
+import com.jetbrains.filesystem.nodes.BlockList;
+import com.jetbrains.filesystem.nodes.DirectoryNode;
+import com.jetbrains.filesystem.nodes.FileNode;
+import com.jetbrains.filesystem.nodes.FileSystemNode;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// The metadata is a log of transactions: a checkpoint with every node and the checksum and generation of every used
+// block, followed by the transactions that only contain the nodes and blocks changed by a flush. The free blocks,
+// the block owners, the reservations and the name index are rebuilt from the nodes when the log is replayed. Every
+// transaction starts with the generation that published it, so the changes since a generation can be copied.
+class MetadataLog {
+
+    private static final int TRANSACTION = 'T';
+    private static final int ROOT_ID = 1;
+    private static final int NO_NODE = 0;
+    private static final long NO_BLOCK = -1;
+
+    private final Set<FileSystemNode> changedNodes;
+    private final Set<FileSystemNode> removedNodes;
+    private final BlockList changedBlocks;
+    private final List<FileNode> writtenFiles;
+    private int nextNodeId;
+    private int persistedNodeId;
+
+    MetadataLog() {
+        this.changedNodes = new LinkedHashSet<>();
+        this.removedNodes = new LinkedHashSet<>();
+        this.changedBlocks = new BlockList();
+        this.writtenFiles = new ArrayList<>();
+        this.nextNodeId = ROOT_ID;
+        this.persistedNodeId = ROOT_ID;
+    }
+
+    void nodeChanged(final FileSystemNode node) {
+        changedNodes.add(node);
+    }
+
+    void nodeRemoved(final FileSystemNode node) {
+        changedNodes.remove(node);
+        if (node.getId() != NO_NODE) removedNodes.add(node);
+    }
+
+    void blockChanged(final long block) {
+        changedBlocks.add(block);
+    }
+
+    boolean hasChanges() {
+        return !changedNodes.isEmpty() || !removedNodes.isEmpty() || !changedBlocks.isEmpty();
+    }
+
+    void writeCheckpoint(final FileHeader header, final long generation, final DataOutputStream out)
+            throws IOException {
+
+        writtenFiles.clear();
+        nextNodeId = ROOT_ID;
+
+        out.write(TRANSACTION);
+        out.writeLong(generation);
+        out.writeInt(NO_NODE);
+
+        final List<FileSystemNode> nodes = new ArrayList<>();
+        nodes.add(header.getRoot());
+        while (!nodes.isEmpty()) {
+
+            final FileSystemNode node = nodes.remove(nodes.size() - 1);
+            node.setId(nextNodeId++);
+            writeNode(node, 0, out);
+
+            if (node instanceof DirectoryNode) nodes.addAll(((DirectoryNode) node).getNodes());
+        }
+        out.writeInt(NO_NODE);
+
+        final BlockOwners usedBlocks = header.getUsedBlocks();
+        for (long block = 0; block <= usedBlocks.lastBlock(); block++) {
+            final FileNode owner = usedBlocks.get(block);
+            if (owner != null && owner != header.getMetadata()) writeBlock(usedBlocks, block, out);
+        }
+        out.writeLong(NO_BLOCK);
+    }
+
+    void writeChanges(final FileHeader header, final long generation, final DataOutputStream out) throws IOException {
+
+        writtenFiles.clear();
+        if (nextNodeId != persistedNodeId) forgetUnpersistedIds();
+        final long[] blocks = changedBlocks.allocatedBlocks().sorted().distinct().toArray();
+
+        out.write(TRANSACTION);
+        out.writeLong(generation);
+        for (final FileSystemNode node : removedNodes) {
+            if (!node.isDescendantOf(header.getRoot())) out.writeInt(node.getId());
+        }
+        out.writeInt(NO_NODE);
+
+        final Set<FileSystemNode> writtenNodes = new LinkedHashSet<>();
+        for (final FileSystemNode node : changedNodes) {
+            if (node.isDescendantOf(header.getRoot())) writeChangedNode(node, writtenNodes, out);
+        }
+        out.writeInt(NO_NODE);
+
+        final BlockOwners usedBlocks = header.getUsedBlocks();
+        for (final long block : blocks) {
+            final FileNode owner = usedBlocks.get(block);
+            if (owner != null && owner != header.getMetadata()) writeBlock(usedBlocks, block, out);
+        }
+        out.writeLong(NO_BLOCK);
+    }
+
+    // The ids given out by a flush that failed are given out again, so the new ids of a transaction always
+    // continue the ones that were persisted
+    private void forgetUnpersistedIds() {
+
+        for (final FileSystemNode node : changedNodes) {
+            if (node.getId() >= persistedNodeId) node.setId(NO_NODE);
+        }
+        removedNodes.removeIf(node -> node.getId() >= persistedNodeId);
+
+        nextNodeId = persistedNodeId;
+    }
+
+    // A new node is written after its parent, so the parent exists when the node is replayed
+    private void writeChangedNode(final FileSystemNode node,
+                                  final Set<FileSystemNode> writtenNodes,
+                                  final DataOutputStream out) throws IOException {
+
+        if (!writtenNodes.add(node)) return;
+
+        final DirectoryNode parent = node.getParent();
+        if (parent != null && parent.getId() == NO_NODE) writeChangedNode(parent, writtenNodes, out);
+
+        final boolean isNew = node.getId() == NO_NODE;
+        if (isNew) node.setId(nextNodeId++);
+
+        final boolean isFile = node instanceof FileNode;
+        writeNode(node, isNew || !isFile ? 0 : ((FileNode) node).getBlocks().firstChangedIndex(), out);
+    }
+
+    private void writeNode(final FileSystemNode node, final int firstBlockIndex, final DataOutputStream out)
+            throws IOException {
+
+        out.writeInt(node.getId());
+        out.writeInt(node.getParent() == null ? NO_NODE : node.getParent().getId());
+        out.writeBoolean(node instanceof FileNode);
+        out.writeUTF(node.getName());
+
+        if (!(node instanceof FileNode)) return;
+
+        final FileNode file = (FileNode) node;
+        out.writeLong(file.getSize());
+        out.writeLong(file.getGrowthHint());
+        out.writeLong(file.getFirstReservedBlock());
+        out.writeLong(file.getReservedBlockCount());
+
+        // Only the blocks from the first changed one on are written, a run of holes is a negative length
+        final BlockList blocks = file.getBlocks();
+        out.writeInt(blocks.size());
+        out.writeInt(firstBlockIndex);
+        for (int i = firstBlockIndex; i < blocks.size(); ) {
+            final int nextAllocated = blocks.nextAllocated(i);
+            if (nextAllocated > i) {
+                out.writeLong(i - nextAllocated);
+                i = nextAllocated;
+            } else {
+                out.writeLong(blocks.get(i++));
+            }
+        }
+
+        writtenFiles.add(file);
+    }
+
+    private static void writeBlock(final BlockOwners usedBlocks, final long block, final DataOutputStream out)
+            throws IOException {
+
+        out.writeLong(block);
+        out.writeLong(usedBlocks.getGeneration(block));
+        out.writeBoolean(usedBlocks.hasChecksum(block));
+        if (usedBlocks.hasChecksum(block)) out.writeInt(usedBlocks.getChecksum(block));
+    }
+
+    // Called once the transaction is published in the superblock
+    void persisted() {
+
+        for (final FileNode file : writtenFiles) {
+            file.getBlocks().markPersisted();
+        }
+
+        writtenFiles.clear();
+        persistedNodeId = nextNodeId;
+        changedNodes.clear();
+        removedNodes.clear();
+        changedBlocks.clear();
+    }
+
+    FileHeader read(final DataInputStream in,
+                    final BlockList pages,
+                    final BlockList tablePages,
+                    final long blockCount) throws IOException {
+
+        final List<FileSystemNode> nodes = new ArrayList<>();
+        nodes.add(null);
+        final BlockOwners usedBlocks = new BlockOwners();
+
+        for (int marker = in.read(); marker != -1; marker = in.read()) {
+            if (marker != TRANSACTION) throw new IOException("The metadata log is corrupted");
+            readTransaction(in, nodes, usedBlocks);
+        }
+
+        if (nodes.size() <= ROOT_ID || !(nodes.get(ROOT_ID) instanceof DirectoryNode))
+            throw new IOException("The metadata log has no root directory");
+
+        final FileHeader header = new FileHeader((DirectoryNode) nodes.get(ROOT_ID), usedBlocks);
+        nextNodeId = nodes.size();
+        persistedNodeId = nextNodeId;
+
+        // A block may have had a checksum as part of a file before it was reused for the metadata
+        for (int i = 0; i < pages.size(); i++) {
+            header.getMetadata().getBlocks().add(pages.get(i));
+            usedBlocks.put(pages.get(i), header.getMetadata());
+            usedBlocks.clearChecksum(pages.get(i));
+        }
+        for (int i = 0; i < tablePages.size(); i++) {
+            header.getMetadataTable().add(tablePages.get(i));
+            usedBlocks.put(tablePages.get(i), header.getMetadata());
+            usedBlocks.clearChecksum(tablePages.get(i));
+        }
+
+        final BitSet reservedBlocks = new BitSet();
+        final List<FileSystemNode> pending = new ArrayList<>(header.getRoot().getNodes());
+        while (!pending.isEmpty()) {
+
+            final FileSystemNode node = pending.remove(pending.size() - 1);
+            header.getNameIndex().add(node);
+
+            if (node instanceof DirectoryNode) {
+                pending.addAll(((DirectoryNode) node).getNodes());
+                continue;
+            }
+
+            final FileNode file = (FileNode) node;
+            for (final long block : (Iterable<Long>) file.getBlocks().allocatedBlocks()::iterator) {
+                checkBlock(block, blockCount);
+                usedBlocks.put(block, file);
+            }
+            file.getBlocks().markPersisted();
+
+            if (file.hasReservedBlocks()) {
+                checkBlock(file.getFirstReservedBlock() + file.getReservedBlockCount() - 1, blockCount);
+                header.getFilesWithReservedBlocks().add(file);
+                reservedBlocks.set((int) file.getFirstReservedBlock(),
+                        (int) (file.getFirstReservedBlock() + file.getReservedBlockCount()));
+            }
+        }
+
+        for (long block = 0; block < blockCount; block++) {
+            if (usedBlocks.get(block) != null || reservedBlocks.get((int) block)) continue;
+
+            usedBlocks.clearChecksum(block);
+            header.getFreeBlocks().add(block);
+        }
+
+        return header;
+    }
+
+    private static void readTransaction(final DataInputStream in,
+                                        final List<FileSystemNode> nodes,
+                                        final BlockOwners usedBlocks) throws IOException {
+
+        in.readLong();
+        for (int id = in.readInt(); id != NO_NODE; id = in.readInt()) {
+            detach(getNode(nodes, id));
+            nodes.set(id, null);
+        }
+
+        // The changed nodes are detached first, so that a node can take the name of one that is renamed or moved
+        // later in the same transaction
+        final List<FileSystemNode> changed = new ArrayList<>();
+        final List<Integer> parentIds = new ArrayList<>();
+        for (int id = in.readInt(); id != NO_NODE; id = in.readInt()) {
+
+            final int parentId = in.readInt();
+            final boolean isFile = in.readBoolean();
+            final String name = in.readUTF();
+
+            final FileSystemNode node;
+            if (id == nodes.size()) {
+                node = isFile ? new FileNode(name) : new DirectoryNode(name);
+                node.setId(id);
+                nodes.add(node);
+            } else {
+                node = getNode(nodes, id);
+                if (node instanceof FileNode != isFile) throw new IOException("The metadata log is corrupted");
+                detach(node);
+                node.rename(name);
+            }
+
+            if (isFile) readFile(in, (FileNode) node);
+
+            changed.add(node);
+            parentIds.add(parentId);
+        }
+
+        for (int i = 0; i < changed.size(); i++) {
+            if (parentIds.get(i) == NO_NODE) continue;
+
+            final FileSystemNode parent = getNode(nodes, parentIds.get(i));
+            if (!(parent instanceof DirectoryNode)) throw new IOException("The metadata log is corrupted");
+            ((DirectoryNode) parent).add(changed.get(i));
+        }
+
+        for (long block = in.readLong(); block != NO_BLOCK; block = in.readLong()) {
+            if (block < 0) throw new IOException("The metadata log is corrupted");
+            usedBlocks.setGeneration(block, in.readLong());
+            if (in.readBoolean()) {
+                usedBlocks.setChecksum(block, in.readInt());
+            } else {
+                usedBlocks.clearChecksum(block);
+            }
+        }
+    }
+
+    // A checkpoint gives the nodes new ids, so the whole log is copied if its checkpoint is newer than the generation;
+    // returns whether the copy starts with the checkpoint
+    static boolean copyTransactions(final DataInputStream in,
+                                    final long sinceGeneration,
+                                    final DataOutputStream out,
+                                    final BlockList changedBlocks) throws IOException {
+
+        final DataOutputStream skipped = new DataOutputStream(OutputStream.nullOutputStream());
+        boolean checkpoint = true;
+        boolean complete = false;
+
+        for (int marker = in.read(); marker != -1; marker = in.read()) {
+            if (marker != TRANSACTION) throw new IOException("The metadata log is corrupted");
+
+            final long transactionGeneration = in.readLong();
+            final boolean copied = transactionGeneration > sinceGeneration;
+            if (checkpoint) complete = copied;
+            checkpoint = false;
+
+            final DataOutputStream copy = copied ? out : skipped;
+            copy.write(TRANSACTION);
+            copy.writeLong(transactionGeneration);
+            copyTransaction(in, copy, sinceGeneration, changedBlocks);
+        }
+
+        return complete;
+    }
+
+    // A transaction that is not copied only refers to blocks that were written before the generation
+    private static void copyTransaction(final DataInputStream in,
+                                        final DataOutputStream out,
+                                        final long sinceGeneration,
+                                        final BlockList changedBlocks) throws IOException {
+
+        for (int id = in.readInt(); id != NO_NODE; id = in.readInt()) {
+            out.writeInt(id);
+        }
+        out.writeInt(NO_NODE);
+
+        for (int id = in.readInt(); id != NO_NODE; id = in.readInt()) {
+
+            out.writeInt(id);
+            out.writeInt(in.readInt());
+            final boolean isFile = in.readBoolean();
+            out.writeBoolean(isFile);
+            out.writeUTF(in.readUTF());
+            if (!isFile) continue;
+
+            for (int i = 0; i < 4; i++) {
+                out.writeLong(in.readLong());
+            }
+
+            final int fileBlockCount = in.readInt();
+            final int firstBlockIndex = in.readInt();
+            out.writeInt(fileBlockCount);
+            out.writeInt(firstBlockIndex);
+            for (long i = firstBlockIndex; i < fileBlockCount; ) {
+                final long entry = in.readLong();
+                out.writeLong(entry);
+                i += entry >= 0 ? 1 : -entry;
+            }
+        }
+        out.writeInt(NO_NODE);
+
+        for (long block = in.readLong(); block != NO_BLOCK; block = in.readLong()) {
+
+            final long blockGeneration = in.readLong();
+            final boolean hasChecksum = in.readBoolean();
+            out.writeLong(block);
+            out.writeLong(blockGeneration);
+            out.writeBoolean(hasChecksum);
+            if (hasChecksum) out.writeInt(in.readInt());
+
+            if (blockGeneration > sinceGeneration) changedBlocks.add(block);
+        }
+        out.writeLong(NO_BLOCK);
+    }
+
+    // The blocks are only checked against the container once the log is replayed, as a defragmentation shrinks it
+    private static void readFile(final DataInputStream in, final FileNode file) throws IOException {
+
+        file.updateSize(in.readLong());
+        file.setGrowthHint(in.readLong());
+        final long firstReservedBlock = in.readLong();
+        final long reservedBlockCount = in.readLong();
+        if (firstReservedBlock < 0 && reservedBlockCount > 0) throw new IOException("The metadata log is corrupted");
+        file.reserveBlocks(firstReservedBlock, reservedBlockCount);
+
+        final BlockList blocks = file.getBlocks();
+        final int fileBlockCount = in.readInt();
+        final int firstBlockIndex = in.readInt();
+        if (firstBlockIndex < 0 || firstBlockIndex > blocks.size() || firstBlockIndex > fileBlockCount)
+            throw new IOException("The metadata log is corrupted");
+
+        blocks.truncate(firstBlockIndex);
+        while (blocks.size() < fileBlockCount) {
+            final long entry = in.readLong();
+            if (entry >= 0) {
+                blocks.add(entry);
+            } else {
+                blocks.addHoles(-entry);
+            }
+        }
+        if (blocks.size() != fileBlockCount) throw new IOException("The metadata log is corrupted");
+    }
+
+    private static void checkBlock(final long block, final long blockCount) throws IOException {
+        if (block < 0 || block >= blockCount) throw new IOException("The metadata log refers to the block " + block
+                + " outside of the container");
+    }
+
+    private static FileSystemNode getNode(final List<FileSystemNode> nodes, final int id) throws IOException {
+        if (id < 0 || id >= nodes.size() || nodes.get(id) == null)
+            throw new IOException("The metadata log refers to the unknown node " + id);
+
+        return nodes.get(id);
+    }
+
+    private static void detach(final FileSystemNode node) {
+        if (node.getParent() != null) node.getParent().remove(node.getName());
+    }
+}
@@ -0,0 +1,52 @@
+package com.jetbrains.filesystem;
+
+class ReadAhead {
+
+    private static final int INITIAL_WINDOW_BLOCKS = 4;
+
+    private final int maxWindowBlocks;
+    private long expectedPosition;
+    private long prefetchedEnd;
+    private int windowBlocks;
+
+    ReadAhead(final int maxWindowBlocks) {
+        if (maxWindowBlocks < 0) throw new RuntimeException("The read-ahead window must not be negative");
+
+        this.maxWindowBlocks = maxWindowBlocks;
+    }
+
+    long[] nextRange(final long position, final int length, final long fileSize) {
+
+        final long end = position + length;
+        final boolean sequential = position == expectedPosition;
+        expectedPosition = end;
+
+        if (maxWindowBlocks == 0) return null;
+
+        if (!sequential) {
+            windowBlocks = 0;
+            prefetchedEnd = end;
+            return null;
+        }
+
+        if (windowBlocks == 0) {
+            windowBlocks = Math.min(INITIAL_WINDOW_BLOCKS, maxWindowBlocks);
+            prefetchedEnd = Math.max(prefetchedEnd, end);
+        } else if (end + (long) windowBlocks * FileHandler.BLOCK_SIZE / 2 >= prefetchedEnd) {
+            windowBlocks = Math.min(windowBlocks * 2, maxWindowBlocks);
+        } else {
+            return null;
+        }
+
+        final long start = Math.max(prefetchedEnd, end);
+        final long rangeEnd = Math.min(fileSize, start + (long) windowBlocks * FileHandler.BLOCK_SIZE);
+        if (rangeEnd <= start) return null;
+
+        prefetchedEnd = rangeEnd;
+        return new long[]{start, rangeEnd - start};
+    }
+
+    int getWindowBlocks() {
+        return windowBlocks;
+    }
+}
@@ -0,0 +1,51 @@
+package com.jetbrains.filesystem;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+public class ScrubReport {
+
+    private final long scannedBlocks;
+    private final long elapsedMillis;
+    private final SortedMap<Long, String> corruptedBlocks;
+
+    public ScrubReport(final long scannedBlocks,
+                       final long elapsedMillis,
+                       final SortedMap<Long, String> corruptedBlocks) {
+        this.scannedBlocks = scannedBlocks;
+        this.elapsedMillis = elapsedMillis;
+        this.corruptedBlocks = Collections.unmodifiableSortedMap(new TreeMap<>(corruptedBlocks));
+    }
+
+    public long getScannedBlocks() {
+        return scannedBlocks;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public SortedMap<Long, String> getCorruptedBlocks() {
+        return corruptedBlocks;
+    }
+
+    public Set<String> getAffectedFiles() {
+        return Collections.unmodifiableSet(new TreeSet<>(corruptedBlocks.values()));
+    }
+
+    public boolean isClean() {
+        return corruptedBlocks.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "ScrubReport{" +
+                "scannedBlocks=" + scannedBlocks +
+                ", elapsedMillis=" + elapsedMillis +
+                ", corruptedBlocks=" + corruptedBlocks +
+                '}';
+    }
+}
@@ -0,0 +1,77 @@
+package com.jetbrains.filesystem;
+
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.IntStream;
+
+class Scrubber {
+
+    private static final int MIN_BLOCKS_PER_WORKER = 256;
+
+    private final FileHandler fileHandler;
+    private final Object lock;
+    private final long maxBytesPerSecond;
+    private final AtomicLong bytesScanned;
+    private long startNanos;
+
+    Scrubber(final FileHandler fileHandler, final Object lock, final long maxBytesPerSecond) {
+        if (maxBytesPerSecond < 0) throw new RuntimeException("The scrub throughput limit must not be negative");
+
+        this.fileHandler = fileHandler;
+        this.lock = lock;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.bytesScanned = new AtomicLong();
+    }
+
+    ScrubReport run() {
+
+        final long[] blocks;
+        final int[] checksums;
+        synchronized (lock) {
+            blocks = fileHandler.getChecksummedBlocks();
+            checksums = new int[blocks.length];
+            for (int i = 0; i < blocks.length; i++) {
+                checksums[i] = fileHandler.getChecksum(blocks[i]);
+            }
+        }
+
+        startNanos = System.nanoTime();
+
+        final int workers = (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                (long) blocks.length / MIN_BLOCKS_PER_WORKER));
+        final Set<Long> suspects = new ConcurrentSkipListSet<>();
+
+        IntStream.range(0, workers).parallel().forEach(worker -> {
+
+            final byte[] scratch = new byte[FileHandler.BLOCK_SIZE];
+            final int end = (int) ((long) blocks.length * (worker + 1) / workers);
+            for (int i = (int) ((long) blocks.length * worker / workers); i < end; i++) {
+                if (!fileHandler.matchesChecksum(blocks[i], checksums[i], scratch)) suspects.add(blocks[i]);
+                throttle();
+            }
+        });
+
+        final SortedMap<Long, String> corruptedBlocks = new TreeMap<>();
+        synchronized (lock) {
+            for (final long block : suspects) {
+                if (fileHandler.isCorrupted(block)) corruptedBlocks.put(block, fileHandler.getOwnerPath(block));
+            }
+        }
+
+        return new ScrubReport(blocks.length, (System.nanoTime() - startNanos) / 1_000_000, corruptedBlocks);
+    }
+
+    private void throttle() {
+
+        final long scanned = bytesScanned.addAndGet(FileHandler.BLOCK_SIZE);
+        if (maxBytesPerSecond == 0) return;
+
+        final long dueNanos = startNanos + (long) (scanned * 1e9 / maxBytesPerSecond);
+        final long waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos > 0) LockSupport.parkNanos(waitNanos);
+    }
+}
@@ -0,0 +1,120 @@
+package com.jetbrains.filesystem;
+
+import java.io.IOException;
+
+class SyncWorker implements AutoCloseable {
+
+    private final SyncAction sync;
+    private final Durability durability;
+    private final long syncIntervalMillis;
+    private final Runnable onSync;
+    private long requestedSequence;
+    private long syncedSequence;
+    private IOException failure;
+    private boolean closed;
+
+    SyncWorker(final SyncAction sync,
+               final Durability durability,
+               final long syncIntervalMillis,
+               final Runnable onSync) {
+
+        this.sync = sync;
+        this.durability = durability;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.onSync = onSync;
+
+        if (durability != Durability.NONE) {
+            final Thread thread = new Thread(this::run, "filesystem-sync");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    synchronized long requestSync() {
+
+        requestedSequence++;
+        if (durability != Durability.COMMIT) return 0;
+
+        notifyAll();
+        return requestedSequence;
+    }
+
+    // Unlike requestSync(), this can be waited for in the PERIODIC mode as well
+    synchronized long requestImmediateSync() {
+
+        requestedSequence++;
+        if (durability == Durability.NONE) return 0;
+
+        notifyAll();
+        return requestedSequence;
+    }
+
+    synchronized boolean isSynced(final long sequence) throws IOException {
+        if (failure != null) throw new IOException("Could not sync the container file", failure);
+
+        return syncedSequence >= sequence;
+    }
+
+    private void run() {
+        try {
+            while (true) {
+
+                final long sequence;
+                synchronized (this) {
+
+                    if (durability == Durability.PERIODIC) {
+                        if (!closed) wait(syncIntervalMillis);
+                    } else {
+                        while (!closed && requestedSequence == syncedSequence) wait();
+                    }
+
+                    if (closed) return;
+                    if (requestedSequence == syncedSequence) continue;
+
+                    sequence = requestedSequence;
+                }
+
+                syncUpTo(sequence);
+                onSync.run();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void syncUpTo(final long sequence) {
+        try {
+            sync.run();
+
+            synchronized (this) {
+                syncedSequence = Math.max(syncedSequence, sequence);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        final long sequence;
+        synchronized (this) {
+            if (closed) return;
+
+            closed = true;
+            notifyAll();
+
+            if (durability == Durability.NONE || requestedSequence == syncedSequence) return;
+            sequence = requestedSequence;
+        }
+
+        syncUpTo(sequence);
+        isSynced(sequence);
+    }
+
+    interface SyncAction {
+        void run() throws IOException;
+    }
+}
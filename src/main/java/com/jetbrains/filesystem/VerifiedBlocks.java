@@ -0,0 +1,64 @@
+package com.jetbrains.filesystem;
+
+import java.util.Arrays;
+
+// The contents of recently verified or written blocks, so a small read is served without reading and verifying the
+// whole block again and a partial write computes the checksum without reading the block. A slot only matches the
+// generation and the checksum the block had when it was added, and its buffer is reused by the next block of the
+// slot, so it is only used under the file system lock.
+class VerifiedBlocks {
+
+    private static final long NO_BLOCK = -1;
+
+    private final long[] blocks;
+    private final long[] generations;
+    private final int[] checksums;
+    private final byte[][] contents;
+
+    VerifiedBlocks(final int capacity) {
+        this.blocks = new long[capacity];
+        this.generations = new long[capacity];
+        this.checksums = new int[capacity];
+        this.contents = new byte[capacity][];
+        Arrays.fill(blocks, NO_BLOCK);
+    }
+
+    byte[] get(final long block, final long generation, final int checksum) {
+
+        final int slot = slot(block);
+        if (blocks[slot] != block || generations[slot] != generation || checksums[slot] != checksum) return null;
+
+        return contents[slot];
+    }
+
+    // The buffer of the slot of the block, which matches no block until the block is added
+    byte[] evict(final long block) {
+
+        final int slot = slot(block);
+        blocks[slot] = NO_BLOCK;
+        if (contents[slot] == null) contents[slot] = new byte[FileHandler.BLOCK_SIZE];
+
+        return contents[slot];
+    }
+
+    void add(final long block, final long generation, final int checksum) {
+
+        final int slot = slot(block);
+        blocks[slot] = block;
+        generations[slot] = generation;
+        checksums[slot] = checksum;
+    }
+
+    void remove(final long block) {
+        final int slot = slot(block);
+        if (blocks[slot] == block) blocks[slot] = NO_BLOCK;
+    }
+
+    void clear() {
+        Arrays.fill(blocks, NO_BLOCK);
+    }
+
+    private int slot(final long block) {
+        return (int) (block % blocks.length);
+    }
+}
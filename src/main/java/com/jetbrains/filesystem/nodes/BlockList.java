@@ -0,0 +1,334 @@
+package com.jetbrains.filesystem.nodes;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.stream.LongStream;
+
+// The allocated blocks are kept in a dense array and the holes as runs of block indexes, so a sparse file costs
+// the same whatever the size of its holes
+public class BlockList implements Serializable {
+
+    private static final long[] EMPTY = new long[0];
+    private static final int[] NO_RUNS = new int[0];
+    private static final Holes NO_HOLES = new Holes();
+
+    private transient long[] blocks;
+    private transient int allocatedCount;
+    private transient int size;
+
+    // Most files have no holes, so they share an empty set of hole runs
+    private transient Holes holes = NO_HOLES;
+
+    // The blocks from this index on may differ from the ones that were last persisted
+    private transient int firstChangedIndex;
+
+    public BlockList() {
+        this.blocks = EMPTY;
+    }
+
+    public BlockList(final int capacity) {
+        this.blocks = capacity == 0 ? EMPTY : new long[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int allocatedCount() {
+        return allocatedCount;
+    }
+
+    public int firstChangedIndex() {
+        return firstChangedIndex;
+    }
+
+    public void markPersisted() {
+        firstChangedIndex = size;
+    }
+
+    public long get(final int index) {
+        checkIndex(index);
+        if (holes.count == 0) return blocks[index];
+
+        final int run = findHoleRun(index);
+        if (run >= 0 && index < holes.ends[run]) return FileNode.HOLE;
+
+        return blocks[index - holesUpTo(run)];
+    }
+
+    public void set(final int index, final long block) {
+
+        final long previous = get(index);
+        firstChangedIndex = Math.min(firstChangedIndex, index);
+        if (previous != FileNode.HOLE && block != FileNode.HOLE) {
+            blocks[index - holesUpTo(findHoleRun(index))] = block;
+        } else if (previous == FileNode.HOLE && block != FileNode.HOLE) {
+            fillHole(index, block);
+        } else if (previous != FileNode.HOLE) {
+            punchHole(index);
+        }
+    }
+
+    public void add(final long block) {
+
+        if (block == FileNode.HOLE) {
+            addHoles(1);
+            return;
+        }
+
+        if (size == Integer.MAX_VALUE) throw new RuntimeException("A file cannot have more than " + size + " blocks");
+        growBlocks();
+        blocks[allocatedCount++] = block;
+        firstChangedIndex = Math.min(firstChangedIndex, size);
+        size++;
+    }
+
+    public void addHoles(final long count) {
+
+        if (count <= 0) return;
+        if (size + count > Integer.MAX_VALUE) {
+            throw new RuntimeException("A file cannot have more than " + Integer.MAX_VALUE + " blocks");
+        }
+
+        if (holes.count > 0 && holes.ends[holes.count - 1] == size) {
+            holes.ends[holes.count - 1] += (int) count;
+        } else {
+            insertHoleRun(holes.count, size, size + (int) count);
+        }
+        firstChangedIndex = Math.min(firstChangedIndex, size);
+        size += (int) count;
+    }
+
+    public int indexOf(final long block) {
+        for (int i = 0; i < allocatedCount; i++) {
+            if (blocks[i] == block) return toIndex(i);
+        }
+
+        return -1;
+    }
+
+    public int nextAllocated(final int index) {
+
+        if (index >= size) return size;
+        if (holes.count == 0) return index;
+
+        final int run = findHoleRun(index);
+        return run >= 0 && index < holes.ends[run] ? holes.ends[run] : index;
+    }
+
+    public void truncate(final int newSize) {
+        if (newSize < 0 || newSize > size) {
+            throw new RuntimeException("Cannot truncate " + size + " blocks to " + newSize);
+        }
+
+        while (holes.count > 0 && holes.starts[holes.count - 1] >= newSize) holes.count--;
+        if (holes.count > 0) holes.ends[holes.count - 1] = Math.min(holes.ends[holes.count - 1], newSize);
+
+        allocatedCount = newSize - holesUpTo(holes.count - 1);
+        firstChangedIndex = Math.min(firstChangedIndex, newSize);
+        size = newSize;
+        if (size == 0) {
+            blocks = EMPTY;
+            holes = NO_HOLES;
+        }
+    }
+
+    public void clear() {
+        truncate(0);
+    }
+
+    public LongStream allocatedBlocks() {
+        return Arrays.stream(blocks, 0, allocatedCount);
+    }
+
+    private void growBlocks() {
+        if (allocatedCount == blocks.length) blocks = Arrays.copyOf(blocks, allocatedCount + (allocatedCount >> 1) + 1);
+    }
+
+    private void fillHole(final int index, final long block) {
+
+        final int run = findHoleRun(index);
+        final int denseIndex = holes.starts[run] - holes.before[run];
+
+        growBlocks();
+        System.arraycopy(blocks, denseIndex, blocks, denseIndex + 1, allocatedCount - denseIndex);
+        blocks[denseIndex] = block;
+        allocatedCount++;
+
+        if (holes.ends[run] - holes.starts[run] == 1) {
+            removeHoleRun(run);
+        } else if (holes.starts[run] == index) {
+            holes.starts[run]++;
+        } else if (holes.ends[run] == index + 1) {
+            holes.ends[run]--;
+        } else {
+            final int end = holes.ends[run];
+            holes.ends[run] = index;
+            insertHoleRun(run + 1, index + 1, end);
+        }
+        countHoles(run);
+    }
+
+    private void punchHole(final int index) {
+
+        final int run = findHoleRun(index);
+        final int denseIndex = index - holesUpTo(run);
+        System.arraycopy(blocks, denseIndex + 1, blocks, denseIndex, allocatedCount - denseIndex - 1);
+        allocatedCount--;
+
+        final boolean extendsPrevious = run >= 0 && holes.ends[run] == index;
+        final boolean extendsNext = run + 1 < holes.count && holes.starts[run + 1] == index + 1;
+        if (extendsPrevious && extendsNext) {
+            holes.ends[run] = holes.ends[run + 1];
+            removeHoleRun(run + 1);
+        } else if (extendsPrevious) {
+            holes.ends[run]++;
+        } else if (extendsNext) {
+            holes.starts[run + 1]--;
+        } else {
+            insertHoleRun(run + 1, index, index + 1);
+        }
+        countHoles(Math.max(run, 0));
+    }
+
+    // The last hole run that starts at or before the index, or -1
+    private int findHoleRun(final int index) {
+
+        int low = 0;
+        int high = holes.count - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (holes.starts[middle] <= index) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return high;
+    }
+
+    private int holesUpTo(final int run) {
+        return run < 0 ? 0 : holes.before[run] + holes.ends[run] - holes.starts[run];
+    }
+
+    private int toIndex(final int denseIndex) {
+
+        int index = denseIndex;
+        for (int run = 0; run < holes.count && holes.starts[run] <= index; run++) {
+            index += holes.ends[run] - holes.starts[run];
+        }
+
+        return index;
+    }
+
+    private void insertHoleRun(final int run, final int start, final int end) {
+
+        if (holes == NO_HOLES) holes = new Holes();
+        if (holes.count == holes.starts.length) {
+            final int capacity = holes.count + (holes.count >> 1) + 1;
+            holes.starts = Arrays.copyOf(holes.starts, capacity);
+            holes.ends = Arrays.copyOf(holes.ends, capacity);
+            holes.before = Arrays.copyOf(holes.before, capacity);
+        }
+
+        System.arraycopy(holes.starts, run, holes.starts, run + 1, holes.count - run);
+        System.arraycopy(holes.ends, run, holes.ends, run + 1, holes.count - run);
+        System.arraycopy(holes.before, run, holes.before, run + 1, holes.count - run);
+        holes.starts[run] = start;
+        holes.ends[run] = end;
+        holes.count++;
+        countHoles(run);
+    }
+
+    private void removeHoleRun(final int run) {
+        System.arraycopy(holes.starts, run + 1, holes.starts, run, holes.count - run - 1);
+        System.arraycopy(holes.ends, run + 1, holes.ends, run, holes.count - run - 1);
+        System.arraycopy(holes.before, run + 1, holes.before, run, holes.count - run - 1);
+        holes.count--;
+    }
+
+    private void countHoles(final int fromRun) {
+        for (int run = fromRun; run < holes.count; run++) {
+            holes.before[run] = holesUpTo(run - 1);
+        }
+    }
+
+    private void checkIndex(final int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Block " + index + " of " + size);
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        out.writeInt(allocatedCount);
+        for (int i = 0; i < allocatedCount; i++) {
+            out.writeLong(blocks[i]);
+        }
+
+        out.writeInt(holes.count);
+        for (int run = 0; run < holes.count; run++) {
+            out.writeInt(holes.starts[run]);
+            out.writeInt(holes.ends[run]);
+        }
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        size = in.readInt();
+        allocatedCount = in.readInt();
+        blocks = allocatedCount == 0 ? EMPTY : new long[allocatedCount];
+        for (int i = 0; i < allocatedCount; i++) {
+            blocks[i] = in.readLong();
+        }
+
+        final int holeRunCount = in.readInt();
+        holes = NO_HOLES;
+        if (holeRunCount > 0) {
+            holes = new Holes();
+            holes.count = holeRunCount;
+            holes.starts = new int[holeRunCount];
+            holes.ends = new int[holeRunCount];
+            holes.before = new int[holeRunCount];
+        }
+        for (int run = 0; run < holes.count; run++) {
+            holes.starts[run] = in.readInt();
+            holes.ends[run] = in.readInt();
+        }
+        countHoles(0);
+    }
+
+    @Override
+    public String toString() {
+
+        final StringBuilder builder = new StringBuilder("[");
+        for (int index = 0, run = 0, denseIndex = 0; index < size; ) {
+
+            if (index > 0) builder.append(", ");
+            if (run < holes.count && holes.starts[run] == index) {
+                builder.append("hole x ").append(holes.ends[run] - holes.starts[run]);
+                index = holes.ends[run++];
+            } else {
+                builder.append(blocks[denseIndex++]);
+                index++;
+            }
+        }
+
+        return builder.append(']').toString();
+    }
+
+    private static final class Holes {
+
+        private int[] starts = NO_RUNS;
+        private int[] ends = NO_RUNS;
+        private int[] before = NO_RUNS;
+        private int count;
+    }
+}
@@ -1,34 +1,36 @@
 package com.jetbrains.filesystem.nodes;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 
 public class DirectoryNode extends FileSystemNode {
 
-    private final Map<String, FileSystemNode> contents;
+    private final SortedNodes contents;
 
     public DirectoryNode(final String name) {
         super(name);
-        this.contents = new HashMap<>();
+        this.contents = new SortedNodes(Comparator.naturalOrder());
     }
 
     public void add(final FileSystemNode node) {
-        contents.put(node.getName(), node);
+        final FileSystemNode replaced = contents.get(node.getName());
+        if (replaced != null) contents.remove(replaced);
+
+        contents.add(node);
+        node.setParent(this);
     }
 
     public FileSystemNode getNode(final String directoryName) {
 
-        if (!contents.containsKey(directoryName)) throw new RuntimeException("Could not find " + directoryName);
+        final FileSystemNode node = contents.get(directoryName);
+        if (node == null) throw new RuntimeException("Could not find " + directoryName);
 
-        return contents.get(directoryName);
+        return node;
     }
 
     public DirectoryNode getDirectory(final String directoryName) {
-        if (!contents.containsKey(directoryName))
-            throw new RuntimeException("Could not find the directory " + directoryName);
 
         final FileSystemNode fileSystemNode = contents.get(directoryName);
+        if (fileSystemNode == null) throw new RuntimeException("Could not find the directory " + directoryName);
 
         if (fileSystemNode instanceof FileNode) throw new RuntimeException(directoryName + " is a file");
 
@@ -36,26 +38,73 @@ public class DirectoryNode extends FileSystemNode {
     }
 
     public FileNode getFile(final String fileName) {
-        if (!contents.containsKey(fileName))
-            throw new RuntimeException("Could not find the file with the name " + fileName);
 
         final FileSystemNode fileSystemNode = contents.get(fileName);
+        if (fileSystemNode == null) throw new RuntimeException("Could not find the file with the name " + fileName);
 
         if (fileSystemNode instanceof DirectoryNode) throw new RuntimeException(fileName + " is a directory");
 
         return (FileNode) fileSystemNode;
     }
 
-    public Set<String> getContents() {
-        return contents.keySet();
+    public NavigableSet<String> getContents() {
+        final NavigableSet<String> names = new TreeSet<>();
+        getNodes().forEach(node -> names.add(node.getName()));
+
+        return Collections.unmodifiableNavigableSet(names);
+    }
+
+    public List<String> list(final String afterName, final int limit) {
+        return list(contents.from(afterName, false), "", limit);
+    }
+
+    // The prefix itself is a name of the range, a name after which the listing continues is not
+    public List<String> listByPrefix(final String prefix, final String afterName, final int limit) {
+
+        final boolean fromPrefix = afterName == null || afterName.compareTo(prefix) < 0;
+        return list(contents.from(fromPrefix ? prefix : afterName, fromPrefix), prefix, limit);
+    }
+
+    private static List<String> list(final Iterator<FileSystemNode> page, final String prefix, final int limit) {
+
+        if (limit < 0) throw new RuntimeException("The limit must not be negative");
+
+        final List<String> names = new ArrayList<>();
+        while (names.size() < limit && page.hasNext()) {
+            final String name = page.next().getName();
+            if (!name.startsWith(prefix)) break;
+
+            names.add(name);
+        }
+
+        return names;
+    }
+
+    public Collection<FileSystemNode> getNodes() {
+        return new AbstractCollection<>() {
+
+            @Override
+            public Iterator<FileSystemNode> iterator() {
+                return contents.from(null, true);
+            }
+
+            @Override
+            public int size() {
+                return contents.size();
+            }
+        };
+    }
+
+    public int size() {
+        return contents.size();
     }
 
     public boolean isEmpty() {
-        return contents.isEmpty();
+        return contents.size() == 0;
     }
 
     public boolean contains(final String name) {
-        return contents.containsKey(name);
+        return contents.get(name) != null;
     }
 
     public boolean isDirectory(final String name) {
@@ -67,14 +116,18 @@ public class DirectoryNode extends FileSystemNode {
     }
 
     public void remove(final String name) {
-        contents.remove(name);
+        final FileSystemNode node = contents.get(name);
+        if (node == null) return;
+
+        contents.remove(node);
+        node.setParent(null);
     }
 
     @Override
     public String toString() {
         return "DirectoryNode{" +
                 "name='" + getName() +
-                "', contents=" + contents +
+                "', contents=" + getContents() +
                 '}';
     }
 }
@@ -1,36 +1,88 @@
 package com.jetbrains.filesystem.nodes;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.Serializable;
 
 public class FileNode extends FileSystemNode {
 
+    public static final long HOLE = -1;
+
     private long size;
-    private final List<Long> blocks;
+    private final BlockList blocks;
+    // Most files never reserve blocks, so the growth hint and the reservation are only allocated when they are set
+    private Reservation reservation;
 
     public FileNode(final String name) {
         super(name);
-        blocks = new ArrayList<>();
+        blocks = new BlockList();
     }
 
     public long getSize() {
         return size;
     }
 
-    public void updateSize(final int size) {
+    public void updateSize(final long size) {
         this.size = size;
     }
 
-    public List<Long> getBlocks() {
+    public BlockList getBlocks() {
         return blocks;
     }
 
+    public long getGrowthHint() {
+        return reservation == null ? 0 : reservation.growthHint;
+    }
+
+    public void setGrowthHint(final long growthHint) {
+        if (reservation == null && growthHint == 0) return;
+
+        reservation().growthHint = growthHint;
+    }
+
+    public boolean hasReservedBlocks() {
+        return reservation != null && reservation.blockCount > 0;
+    }
+
+    public long getFirstReservedBlock() {
+        return reservation == null ? 0 : reservation.firstBlock;
+    }
+
+    public long getReservedBlockCount() {
+        return reservation == null ? 0 : reservation.blockCount;
+    }
+
+    public void reserveBlocks(final long firstBlock, final long blockCount) {
+        if (reservation == null && firstBlock == 0 && blockCount == 0) return;
+
+        reservation().firstBlock = firstBlock;
+        reservation().blockCount = blockCount;
+    }
+
+    public long takeReservedBlock() {
+        if (!hasReservedBlocks()) throw new RuntimeException(getName() + " has no reserved blocks");
+
+        reservation.blockCount--;
+        return reservation.firstBlock++;
+    }
+
+    private Reservation reservation() {
+        if (reservation == null) reservation = new Reservation();
+        return reservation;
+    }
+
     @Override
     public String toString() {
         return "FileNode{" +
                 "name='" + getName() +
                 "', size=" + size +
                 ", blocks=" + blocks +
+                ", reservedBlocks=" + getReservedBlockCount() +
                 '}';
     }
+
+    private static final class Reservation implements Serializable {
+
+        private long growthHint;
+        private long firstBlock;
+        private long blockCount;
+    }
 }
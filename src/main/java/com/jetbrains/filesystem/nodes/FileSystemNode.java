@@ -1,10 +1,14 @@
 package com.jetbrains.filesystem.nodes;
 
 import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 public abstract class FileSystemNode implements Serializable {
 
     private String name;
+    private DirectoryNode parent;
+    private transient int id;
 
     protected FileSystemNode(final String name) {
         this.name = name;
@@ -17,4 +21,41 @@ public abstract class FileSystemNode implements Serializable {
     public void rename(final String newName) {
         name = newName;
     }
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(final int id) {
+        this.id = id;
+    }
+
+    public DirectoryNode getParent() {
+        return parent;
+    }
+
+    void setParent(final DirectoryNode parent) {
+        this.parent = parent;
+    }
+
+    public String getPath() {
+
+        if (parent == null) return "/";
+
+        final Deque<String> names = new ArrayDeque<>();
+        for (FileSystemNode node = this; node.parent != null; node = node.parent) {
+            names.addFirst(node.name);
+        }
+
+        return "/" + String.join("/", names);
+    }
+
+    public boolean isDescendantOf(final DirectoryNode directory) {
+
+        for (FileSystemNode node = this; node != null; node = node.parent) {
+            if (node == directory) return true;
+        }
+
+        return false;
+    }
 }
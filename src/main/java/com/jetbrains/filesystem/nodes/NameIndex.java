@@ -0,0 +1,115 @@
+package com.jetbrains.filesystem.nodes;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class NameIndex implements Serializable {
+
+    // Orders the names by their last character first, so the names with a common suffix are a range without
+    // keeping a reversed copy of every name
+    private static final Comparator<String> BY_REVERSED_NAME =
+            (Comparator<String> & Serializable) NameIndex::compareReversed;
+
+    private final SortedNodes nodesByName;
+    private final SortedNodes nodesByReversedName;
+
+    public NameIndex() {
+        this.nodesByName = new SortedNodes(Comparator.naturalOrder());
+        this.nodesByReversedName = new SortedNodes(BY_REVERSED_NAME);
+    }
+
+    public void add(final FileSystemNode node) {
+        nodesByName.add(node);
+        nodesByReversedName.add(node);
+    }
+
+    public void remove(final FileSystemNode node) {
+        if (!nodesByName.remove(node) || !nodesByReversedName.remove(node))
+            throw new RuntimeException(node.getName() + " is not indexed");
+    }
+
+    public Stream<FileSystemNode> find(final String globOrPrefix) {
+
+        final int firstWildcard = indexOfWildcard(globOrPrefix);
+        if (firstWildcard < 0) return withPrefix(globOrPrefix);
+
+        final Pattern pattern = toPattern(globOrPrefix);
+        final String prefix = globOrPrefix.substring(0, firstWildcard);
+        final String suffix = globOrPrefix.substring(lastIndexOfWildcard(globOrPrefix) + 1);
+
+        final Stream<FileSystemNode> candidates = !prefix.isEmpty() || suffix.isEmpty()
+                ? withPrefix(prefix)
+                : withSuffix(suffix);
+
+        return candidates.filter(node -> pattern.matcher(node.getName()).matches());
+    }
+
+    private Stream<FileSystemNode> withPrefix(final String prefix) {
+        return stream(nodesByName.from(prefix, true)).takeWhile(node -> node.getName().startsWith(prefix));
+    }
+
+    // The names with a common suffix are a range of the reversed order that starts with the suffix itself
+    private Stream<FileSystemNode> withSuffix(final String suffix) {
+        return stream(nodesByReversedName.from(suffix, true)).takeWhile(node -> node.getName().endsWith(suffix));
+    }
+
+    private static Stream<FileSystemNode> stream(final Iterator<FileSystemNode> nodes) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(nodes, Spliterator.ORDERED), false);
+    }
+
+    private static int indexOfWildcard(final String glob) {
+        for (int i = 0; i < glob.length(); i++) {
+            if (isWildcard(glob.charAt(i))) return i;
+        }
+
+        return -1;
+    }
+
+    private static int lastIndexOfWildcard(final String glob) {
+        for (int i = glob.length() - 1; i >= 0; i--) {
+            if (isWildcard(glob.charAt(i))) return i;
+        }
+
+        return -1;
+    }
+
+    private static boolean isWildcard(final char c) {
+        return c == '*' || c == '?';
+    }
+
+    private static Pattern toPattern(final String glob) {
+
+        final StringBuilder regex = new StringBuilder();
+        final StringBuilder literal = new StringBuilder();
+
+        for (int i = 0; i < glob.length(); i++) {
+
+            final char c = glob.charAt(i);
+            if (!isWildcard(c)) {
+                literal.append(c);
+                continue;
+            }
+
+            if (literal.length() > 0) regex.append(Pattern.quote(literal.toString()));
+            literal.setLength(0);
+            regex.append(c == '*' ? ".*" : ".");
+        }
+
+        if (literal.length() > 0) regex.append(Pattern.quote(literal.toString()));
+
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private static int compareReversed(final String first, final String second) {
+
+        for (int i = first.length() - 1, j = second.length() - 1; i >= 0 && j >= 0; i--, j--) {
+            final int difference = first.charAt(i) - second.charAt(j);
+            if (difference != 0) return difference;
+        }
+
+        return first.length() - second.length();
+    }
+}
@@ -0,0 +1,231 @@
+package com.jetbrains.filesystem.nodes;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Nodes sorted by their names in chunks of at most MAX_CHUNK_SIZE references, so a node costs a slot of an array
+// instead of a map entry while an insert or a removal only moves one chunk. A chunk starts small and doubles until
+// it is split, and neighbouring chunks that get sparse are merged. The names are read from the nodes, so a node has
+// to be removed before it is renamed.
+class SortedNodes implements Serializable {
+
+    private static final int MAX_CHUNK_SIZE = 512;
+    private static final FileSystemNode[][] NO_CHUNKS = new FileSystemNode[0][];
+    private static final int[] NO_SIZES = new int[0];
+
+    private final Comparator<String> order;
+    private FileSystemNode[][] chunks;
+    private int[] chunkSizes;
+    private int chunkCount;
+    private int size;
+
+    SortedNodes(final Comparator<String> order) {
+        this.order = order;
+        this.chunks = NO_CHUNKS;
+        this.chunkSizes = NO_SIZES;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // A node with a name that is already used is added after the nodes with that name
+    void add(final FileSystemNode node) {
+
+        if (chunkCount == 0) insertChunk(0, new FileSystemNode[2]);
+
+        int chunk = chunkCount == 1 ? 0 : Math.min(findChunk(node.getName(), false), chunkCount - 1);
+
+        if (chunkSizes[chunk] == chunks[chunk].length) {
+            if (chunks[chunk].length < MAX_CHUNK_SIZE) {
+                chunks[chunk] = Arrays.copyOf(chunks[chunk], chunks[chunk].length * 2);
+            } else {
+                splitChunk(chunk);
+                if (compare(node.getName(), chunk, chunkSizes[chunk] - 1) >= 0) chunk++;
+            }
+        }
+
+        final FileSystemNode[] nodes = chunks[chunk];
+        final int index = findIndex(node.getName(), chunk, false);
+        System.arraycopy(nodes, index, nodes, index + 1, chunkSizes[chunk] - index);
+        nodes[index] = node;
+        chunkSizes[chunk]++;
+        size++;
+    }
+
+    boolean remove(final FileSystemNode node) {
+
+        int chunk = findChunk(node.getName(), true);
+        int index = chunk < chunkCount ? findIndex(node.getName(), chunk, true) : 0;
+        while (chunk < chunkCount) {
+
+            final FileSystemNode next = chunks[chunk][index];
+            if (!next.getName().equals(node.getName())) return false;
+            if (next == node) {
+                removeAt(chunk, index);
+                return true;
+            }
+
+            if (++index == chunkSizes[chunk]) {
+                chunk++;
+                index = 0;
+            }
+        }
+
+        return false;
+    }
+
+    FileSystemNode get(final String name) {
+
+        final Cursor cursor = new Cursor(name, true);
+        if (!cursor.hasNext()) return null;
+
+        final FileSystemNode node = cursor.next();
+        return node.getName().equals(name) ? node : null;
+    }
+
+    // The nodes from the name on, or all of them if the name is null
+    Iterator<FileSystemNode> from(final String name, final boolean inclusive) {
+        return name == null ? new Cursor() : new Cursor(name, inclusive);
+    }
+
+    private void removeAt(final int chunk, final int index) {
+
+        final FileSystemNode[] nodes = chunks[chunk];
+        System.arraycopy(nodes, index + 1, nodes, index, chunkSizes[chunk] - index - 1);
+        nodes[--chunkSizes[chunk]] = null;
+        size--;
+
+        if (chunkSizes[chunk] == 0) {
+            removeChunk(chunk);
+        } else if (chunk + 1 < chunkCount && chunkSizes[chunk] + chunkSizes[chunk + 1] <= MAX_CHUNK_SIZE / 2) {
+            mergeChunks(chunk);
+        } else if (chunk > 0 && chunkSizes[chunk - 1] + chunkSizes[chunk] <= MAX_CHUNK_SIZE / 2) {
+            mergeChunks(chunk - 1);
+        }
+    }
+
+    // The first chunk whose last node is not before the name (inclusive) or after it (exclusive), or chunkCount
+    private int findChunk(final String name, final boolean inclusive) {
+
+        int low = 0;
+        int high = chunkCount;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            final int comparison = compare(name, middle, chunkSizes[middle] - 1);
+            if (comparison < 0 || comparison == 0 && inclusive) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+
+        return low;
+    }
+
+    private int findIndex(final String name, final int chunk, final boolean inclusive) {
+
+        int low = 0;
+        int high = chunkSizes[chunk];
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            final int comparison = compare(name, chunk, middle);
+            if (comparison < 0 || comparison == 0 && inclusive) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+
+        return low;
+    }
+
+    private int compare(final String name, final int chunk, final int index) {
+        return order.compare(name, chunks[chunk][index].getName());
+    }
+
+    private void splitChunk(final int chunk) {
+
+        final int half = chunkSizes[chunk] / 2;
+        final FileSystemNode[] upper = new FileSystemNode[MAX_CHUNK_SIZE];
+        System.arraycopy(chunks[chunk], half, upper, 0, chunkSizes[chunk] - half);
+        Arrays.fill(chunks[chunk], half, chunkSizes[chunk], null);
+
+        insertChunk(chunk + 1, upper);
+        chunkSizes[chunk + 1] = chunkSizes[chunk] - half;
+        chunkSizes[chunk] = half;
+    }
+
+    private void mergeChunks(final int chunk) {
+
+        final int mergedSize = chunkSizes[chunk] + chunkSizes[chunk + 1];
+        if (chunks[chunk].length < mergedSize) chunks[chunk] = Arrays.copyOf(chunks[chunk], MAX_CHUNK_SIZE);
+
+        System.arraycopy(chunks[chunk + 1], 0, chunks[chunk], chunkSizes[chunk], chunkSizes[chunk + 1]);
+        chunkSizes[chunk] = mergedSize;
+        removeChunk(chunk + 1);
+    }
+
+    private void insertChunk(final int chunk, final FileSystemNode[] nodes) {
+
+        if (chunkCount == chunks.length) {
+            final int capacity = Math.max(1, chunkCount * 2);
+            chunks = Arrays.copyOf(chunks, capacity);
+            chunkSizes = Arrays.copyOf(chunkSizes, capacity);
+        }
+
+        System.arraycopy(chunks, chunk, chunks, chunk + 1, chunkCount - chunk);
+        System.arraycopy(chunkSizes, chunk, chunkSizes, chunk + 1, chunkCount - chunk);
+        chunks[chunk] = nodes;
+        chunkSizes[chunk] = 0;
+        chunkCount++;
+    }
+
+    private void removeChunk(final int chunk) {
+
+        System.arraycopy(chunks, chunk + 1, chunks, chunk, chunkCount - chunk - 1);
+        System.arraycopy(chunkSizes, chunk + 1, chunkSizes, chunk, chunkCount - chunk - 1);
+        chunks[--chunkCount] = null;
+
+        if (chunkCount == 0) {
+            chunks = NO_CHUNKS;
+            chunkSizes = NO_SIZES;
+        }
+    }
+
+    private final class Cursor implements Iterator<FileSystemNode> {
+
+        private int chunk;
+        private int index;
+
+        private Cursor() {
+        }
+
+        private Cursor(final String name, final boolean inclusive) {
+            chunk = findChunk(name, inclusive);
+            if (chunk < chunkCount) index = findIndex(name, chunk, inclusive);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return chunk < chunkCount;
+        }
+
+        @Override
+        public FileSystemNode next() {
+
+            if (!hasNext()) throw new NoSuchElementException();
+
+            final FileSystemNode node = chunks[chunk][index++];
+            if (index == chunkSizes[chunk]) {
+                chunk++;
+                index = 0;
+            }
+
+            return node;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.jetbrains.filesystem.simulator;
+
+import com.jetbrains.filesystem.FileSystem;
+import com.jetbrains.filesystem.FileSystemOptions;
+import com.jetbrains.filesystem.FileSystemStatistics;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class AgingSimulator {
+
+    private final long operations;
+    private final long seed;
+    private final int directories;
+    private final int maxFiles;
+    private final int maxWriteSize;
+    private final int readSample;
+    private final long reportInterval;
+    private final int[] weights;
+    private final String container;
+    private final boolean keep;
+    private final FileSystemOptions options;
+    private final PrintStream out;
+
+    private final Random random;
+    private final List<String> files;
+    private final Map<String, Long> sizes;
+    private long nextFileNumber;
+    private long bytesWritten;
+
+    public AgingSimulator(final Map<String, String> arguments) {
+        this(arguments, System.out);
+    }
+
+    public AgingSimulator(final Map<String, String> arguments, final PrintStream out) {
+        this.operations = Long.parseLong(arguments.getOrDefault("operations", "100000"));
+        this.seed = Long.parseLong(arguments.getOrDefault("seed", "42"));
+        this.directories = Integer.parseInt(arguments.getOrDefault("directories", "16"));
+        this.maxFiles = Integer.parseInt(arguments.getOrDefault("maxFiles", "2000"));
+        this.maxWriteSize = Integer.parseInt(arguments.getOrDefault("maxWriteSize", "65536"));
+        this.readSample = Integer.parseInt(arguments.getOrDefault("readSample", "100"));
+        this.reportInterval = Long.parseLong(arguments.getOrDefault("reportInterval", "10000"));
+        this.weights = new int[]{
+                Integer.parseInt(arguments.getOrDefault("create", "20")),
+                Integer.parseInt(arguments.getOrDefault("append", "50")),
+                Integer.parseInt(arguments.getOrDefault("overwrite", "20")),
+                Integer.parseInt(arguments.getOrDefault("delete", "10"))
+        };
+        this.container = arguments.getOrDefault("container", "build/aging-simulator.fs");
+        this.keep = Boolean.parseBoolean(arguments.getOrDefault("keep", "false"));
+        this.options = new FileSystemOptions()
+                .withAppendBufferSize(Integer.parseInt(arguments.getOrDefault("appendBufferSize", "65536")));
+
+        if (operations < 0 || directories <= 0 || maxFiles <= 0 || maxWriteSize <= 0 || reportInterval <= 0) {
+            throw new RuntimeException("The operation count must not be negative and the limits must be positive");
+        }
+        for (final int weight : weights) {
+            if (weight < 0) throw new RuntimeException("The operation weights must not be negative");
+        }
+        if (weights[0] == 0) throw new RuntimeException("The create weight must be positive");
+
+        this.out = out;
+        this.random = new Random(seed);
+        this.files = new ArrayList<>();
+        this.sizes = new HashMap<>();
+    }
+
+    public static void main(final String[] args) throws Exception {
+
+        final Map<String, String> arguments = new HashMap<>();
+        for (final String arg : args) {
+            final String[] keyValue = arg.replaceFirst("^--", "").split("=", 2);
+            if (keyValue.length != 2) throw new RuntimeException("Expected --name=value but got " + arg);
+
+            arguments.put(keyValue[0], keyValue[1]);
+        }
+
+        new AgingSimulator(arguments).run();
+    }
+
+    // Returns the number of operations that completed; a failed run still reports the aged container, defragments
+    // and cleans it up before the failure is rethrown
+    public long run() throws Exception {
+
+        out.printf("Aging %s with %d operations, seed %d, weights create/append/overwrite/delete %d/%d/%d/%d%n",
+                container, operations, seed, weights[0], weights[1], weights[2], weights[3]);
+
+        long completedOperations = 0;
+        Exception failure = null;
+
+        try (final FileSystem fileSystem = new FileSystem(container, options)) {
+            try {
+                for (int i = 0; i < directories; i++) {
+                    fileSystem.createDirectory("/d" + i);
+                }
+
+                long intervalStart = System.nanoTime();
+                long intervalBytes = 0;
+                for (long operation = 1; operation <= operations; operation++) {
+
+                    runOperation(fileSystem);
+                    completedOperations = operation;
+
+                    if (operation % reportInterval != 0 && operation != operations) continue;
+
+                    final double writeSeconds = (System.nanoTime() - intervalStart) / 1e9;
+                    report(fileSystem, "after " + operation + " operations",
+                            (bytesWritten - intervalBytes) / writeSeconds, (operation - 1) % reportInterval + 1,
+                            writeSeconds);
+
+                    intervalStart = System.nanoTime();
+                    intervalBytes = bytesWritten;
+                }
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+                out.printf("Failed after %d of %d operations (%d files, %d bytes written): %s%n",
+                        completedOperations, operations, files.size(), bytesWritten, e);
+            }
+
+            try {
+                fileSystem.flush();
+                report(fileSystem, "before defragment", Double.NaN, 0, 0);
+
+                final long defragmentStart = System.nanoTime();
+                fileSystem.defragment();
+                out.printf("defragment took %.1f ms%n", (System.nanoTime() - defragmentStart) / 1e6);
+
+                report(fileSystem, "after defragment", Double.NaN, 0, 0);
+            } catch (IOException | RuntimeException e) {
+                failure = addFailure(failure, e);
+            }
+
+            if (!keep) {
+                try {
+                    fileSystem.deleteFileSystem();
+                } catch (Exception e) {
+                    failure = addFailure(failure, e);
+                }
+            }
+
+            // Thrown before the file system is closed, so a failure to close is suppressed instead of replacing it
+            if (failure != null) throw failure;
+        }
+
+        return completedOperations;
+    }
+
+    // The first failure is the one that is thrown; the failures of the cleanup after it are suppressed by it
+    private static Exception addFailure(final Exception failure, final Exception cleanupFailure) {
+
+        if (failure == null) return cleanupFailure;
+
+        failure.addSuppressed(cleanupFailure);
+        return failure;
+    }
+
+    private void runOperation(final FileSystem fileSystem) throws IOException {
+
+        int choice = random.nextInt(weights[0] + weights[1] + weights[2] + weights[3]);
+        int operation = 0;
+        while (choice >= weights[operation]) {
+            choice -= weights[operation];
+            operation++;
+        }
+
+        if (files.isEmpty()) operation = 0;
+        if (operation == 0 && files.size() >= maxFiles) operation = 3;
+
+        switch (operation) {
+            case 0:
+                create(fileSystem);
+                break;
+            case 1:
+                append(fileSystem);
+                break;
+            case 2:
+                overwrite(fileSystem);
+                break;
+            default:
+                delete(fileSystem);
+        }
+    }
+
+    private void create(final FileSystem fileSystem) throws IOException {
+
+        final String path = "/d" + random.nextInt(directories) + "/f" + nextFileNumber++;
+        final byte[] contents = randomContents();
+
+        fileSystem.createFile(path);
+        fileSystem.writeToFile(path, contents);
+
+        files.add(path);
+        sizes.put(path, (long) contents.length);
+        bytesWritten += contents.length;
+    }
+
+    private void append(final FileSystem fileSystem) throws IOException {
+
+        final String path = files.get(random.nextInt(files.size()));
+        final byte[] contents = randomContents();
+
+        fileSystem.appendToFile(path, contents);
+
+        sizes.merge(path, (long) contents.length, Long::sum);
+        bytesWritten += contents.length;
+    }
+
+    private void overwrite(final FileSystem fileSystem) throws IOException {
+
+        final String path = files.get(random.nextInt(files.size()));
+        final byte[] contents = randomContents();
+        final long size = sizes.get(path);
+        final long position = size == 0 ? 0 : (long) (random.nextDouble() * size);
+
+        fileSystem.writeToFile(path, position, contents);
+
+        sizes.put(path, Math.max(size, position + contents.length));
+        bytesWritten += contents.length;
+    }
+
+    private void delete(final FileSystem fileSystem) throws IOException {
+
+        final int index = random.nextInt(files.size());
+        final String path = files.get(index);
+
+        fileSystem.removeFile(path);
+
+        files.set(index, files.get(files.size() - 1));
+        files.remove(files.size() - 1);
+        sizes.remove(path);
+    }
+
+    private byte[] randomContents() {
+        final byte[] contents = new byte[1 + random.nextInt(maxWriteSize)];
+        random.nextBytes(contents);
+        return contents;
+    }
+
+    private void report(final FileSystem fileSystem,
+                        final String label,
+                        final double writeThroughput,
+                        final long intervalOperations,
+                        final double intervalSeconds) throws IOException {
+
+        final double readThroughput = measureReadThroughput(fileSystem);
+        final FileSystemStatistics statistics = fileSystem.getStatistics();
+
+        final Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        final long heap = runtime.totalMemory() - runtime.freeMemory();
+
+        out.printf("[%s]%n", label);
+        if (!Double.isNaN(writeThroughput)) {
+            out.printf("  %d operations in %.2f s, write %.1f MB/s%n",
+                    intervalOperations, intervalSeconds, writeThroughput / (1024 * 1024));
+        }
+        out.printf("  read %.1f MB/s over %d files, heap %.1f MB%n",
+                readThroughput / (1024 * 1024), Math.min(readSample, files.size()), heap / (1024.0 * 1024));
+        out.printf("  %s%n", statistics);
+    }
+
+    private double measureReadThroughput(final FileSystem fileSystem) throws IOException {
+
+        if (files.isEmpty() || readSample == 0) return 0;
+
+        final Random sampleRandom = new Random(seed + files.size());
+        long bytesRead = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < readSample; i++) {
+            bytesRead += fileSystem.readFile(files.get(sampleRandom.nextInt(files.size()))).length;
+        }
+
+        return bytesRead / ((System.nanoTime() - start) / 1e9);
+    }
+}
@@ -1,13 +1,40 @@
 package com.jetbrains.filesystem;
 
+import com.jetbrains.filesystem.simulator.AgingSimulator;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
-
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.UnaryOperator;
+
+import static java.util.stream.Collectors.toSet;
 import static org.hamcrest.CoreMatchers.hasItems;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.jupiter.api.Assertions.*;
@@ -260,6 +287,1482 @@ class FileSystemTest {
         }
     }
 
+    @Test
+    public void shouldListDirectoryInPages() throws Exception {
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            fileSystem.createDirectory("/logs");
+            fileSystem.createFile("/logs/c.log");
+            fileSystem.createFile("/logs/a.log");
+            fileSystem.createDirectory("/logs/b");
+            fileSystem.createFile("/logs/d.log");
+
+            assertEquals(List.of("a.log", "b"), fileSystem.list("/logs", null, 2));
+            assertEquals(List.of("c.log", "d.log"), fileSystem.list("/logs", "b", 2));
+            assertTrue(fileSystem.list("/logs", "d.log", 2).isEmpty());
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldListDirectoryByPrefix() throws Exception {
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            fileSystem.createFile("/a.tmp");
+            fileSystem.createFile("/ab.tmp");
+            fileSystem.createFile("/abc.tmp");
+            fileSystem.createFile("/b.tmp");
+
+            assertEquals(List.of("ab.tmp", "abc.tmp"), fileSystem.listByPrefix("/", "ab", null, 10));
+            assertEquals(List.of("abc.tmp"), fileSystem.listByPrefix("/", "ab", "ab.tmp", 10));
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldPersistMetadataLargerThanTheHeader() throws Exception {
+
+        final int numberOfFiles = 40000;
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            fileSystem.createDirectory("/big");
+            for (int i = 0; i < numberOfFiles; i++) {
+                fileSystem.createFile("/big/file" + i);
+            }
+
+            // More pages than a single metadata table page can list
+            assertTrue(fileSystem.getStatistics().getMetadataSize() > 2 << 20);
+        }
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            assertEquals(numberOfFiles, fileSystem.getDirectoryContents("/big").size());
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldReplayTheMetadataLogAfterEveryChange() throws Exception {
+
+        final Random random = new Random(7);
+        final byte[] contents = new byte[10000];
+        random.nextBytes(contents);
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            fileSystem.createDirectory("/a");
+            fileSystem.createDirectory("/a/b");
+            fileSystem.createFile("/a/x");
+            fileSystem.createFile("/a/b/y");
+            fileSystem.writeToFile("/a/x", contents);
+            checkReplayedMetadata(fileSystem, Arrays.asList("/", "/a", "/a/b"), Arrays.asList("/a/x", "/a/b/y"));
+
+            fileSystem.appendToFile("/a/x", contents);
+            fileSystem.writeToFile("/a/b/y", 50000, contents);
+            fileSystem.flush();
+            checkReplayedMetadata(fileSystem, Arrays.asList("/", "/a", "/a/b"), Arrays.asList("/a/x", "/a/b/y"));
+
+            fileSystem.truncate("/a/x", 5000);
+            fileSystem.punchHole("/a/b/y", 49152, 8192);
+            fileSystem.rename("/a/x", "z");
+            fileSystem.move("/a/b/y", "/");
+            checkReplayedMetadata(fileSystem, Arrays.asList("/", "/a", "/a/b"), Arrays.asList("/a/z", "/y"));
+
+            fileSystem.preallocate("/a/z", 100000);
+            fileSystem.setGrowthHint("/y", 40000);
+            fileSystem.appendToFile("/y", contents);
+            fileSystem.flush();
+            checkReplayedMetadata(fileSystem, Arrays.asList("/", "/a", "/a/b"), Arrays.asList("/a/z", "/y"));
+
+            fileSystem.removeDirectory("/a/b");
+            fileSystem.createFile("/a/b");
+            fileSystem.writeToFile("/a/b", contents);
+            fileSystem.removeFile("/y");
+            fileSystem.defragment();
+            checkReplayedMetadata(fileSystem, Arrays.asList("/", "/a"), Arrays.asList("/a/z", "/a/b"));
+        }
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            fileSystem.createFile("/a/c");
+            fileSystem.writeToFile("/a/c", 4096, contents);
+            checkReplayedMetadata(fileSystem, Arrays.asList("/", "/a"), Arrays.asList("/a/z", "/a/b", "/a/c"));
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    // A read-only file system replays the log that the writer has published so far
+    private static void checkReplayedMetadata(final FileSystem fileSystem,
+                                              final List<String> directories,
+                                              final List<String> files) throws Exception {
+
+        try (final FileSystem reader = new FileSystem(FILE_NAME, new FileSystemOptions().withReadOnly(true))) {
+
+            for (final String directory : directories) {
+                assertEquals(fileSystem.getDirectoryContents(directory), reader.getDirectoryContents(directory));
+            }
+
+            for (final String file : files) {
+                assertArrayEquals(fileSystem.readFile(file), reader.readFile(file));
+                assertEquals(fileSystem.getAllocatedSize(file), reader.getAllocatedSize(file));
+                assertEquals(fileSystem.getReservedSize(file), reader.getReservedSize(file));
+            }
+
+            assertEquals(fileSystem.find("/", "*").collect(toSet()), reader.find("/", "*").collect(toSet()));
+        }
+    }
+
+    @Test
+    public void shouldImportAndExportDirectoryTrees() throws Exception {
+
+        final File sourcesDirectory = new File("src/main");
+        final Path exportDirectory = Files.createTempDirectory("export");
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            fileSystem.createDirectory("/imported");
+            fileSystem.importTree(sourcesDirectory.toPath(), "/imported");
+        }
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            checkDirectoryContents(fileSystem, sourcesDirectory, "/imported/");
+
+            fileSystem.exportTree("/imported", exportDirectory);
+            checkDirectoryContents(fileSystem, exportDirectory.toFile(), "/imported/");
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldSkipSymbolicLinksAndLeaveTheTreeUnchangedOnAFailedImport() throws Exception {
+
+        final Path hostDirectory = Files.createTempDirectory("import");
+        Files.createDirectory(hostDirectory.resolve("a"));
+        Files.write(hostDirectory.resolve("a").resolve("file"), "contents".getBytes());
+        Files.createSymbolicLink(hostDirectory.resolve("a").resolve("loop"), hostDirectory);
+        Files.createSymbolicLink(hostDirectory.resolve("link"), hostDirectory.resolve("a").resolve("file"));
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            fileSystem.createDirectory("/imported");
+            fileSystem.importTree(hostDirectory, "/imported");
+
+            assertEquals(Set.of("a"), fileSystem.getDirectoryContents("/imported"));
+            assertEquals(Set.of("file"), fileSystem.getDirectoryContents("/imported/a"));
+            assertEquals("contents", new String(fileSystem.readFile("/imported/a/file")));
+
+            fileSystem.createDirectory("/conflict");
+            fileSystem.createFile("/conflict/a");
+            fileSystem.writeToFile("/conflict/a", "kept".getBytes());
+            final long usedBlocks = fileSystem.getStatistics().getUsedBlocks();
+
+            assertThrows(RuntimeException.class, () -> fileSystem.importTree(hostDirectory, "/conflict"));
+
+            assertEquals(Set.of("a"), fileSystem.getDirectoryContents("/conflict"));
+            assertEquals("kept", new String(fileSystem.readFile("/conflict/a")));
+            assertEquals(usedBlocks, fileSystem.getStatistics().getUsedBlocks());
+
+            fileSystem.deleteFileSystem();
+        } finally {
+            Files.delete(hostDirectory.resolve("link"));
+            Files.delete(hostDirectory.resolve("a").resolve("loop"));
+            Files.delete(hostDirectory.resolve("a").resolve("file"));
+            Files.delete(hostDirectory.resolve("a"));
+            Files.delete(hostDirectory);
+        }
+    }
+
+    @Test
+    public void shouldReadHolesInSparseFilesAsZeros() throws Exception {
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            final String filePath = "/sparse.img";
+            fileSystem.createFile(filePath);
+            fileSystem.truncate(filePath, 1_000_000);
+
+            assertEquals(1_000_000, fileSystem.getFileSize(filePath));
+            assertEquals(0, fileSystem.getAllocatedSize(filePath));
+
+            fileSystem.writeToFile(filePath, 500_000, "data".getBytes());
+            assertEquals(4096, fileSystem.getAllocatedSize(filePath));
+
+            final byte[] contents = fileSystem.readFile(filePath);
+            assertEquals(1_000_000, contents.length);
+            assertEquals("data", new String(contents, 500_000, 4));
+            for (int i = 0; i < contents.length; i++) {
+                if (i < 500_000 || i >= 500_004) assertEquals(0, contents[i]);
+            }
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldStoreHugeHolesAsRuns() throws Exception {
+
+        final String filePath = "/huge.img";
+        final long size = 512L << 30;
+        final long emptyMetadataSize;
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            fileSystem.createFile(filePath);
+            fileSystem.flush();
+            emptyMetadataSize = fileSystem.getStatistics().getMetadataSize();
+
+            fileSystem.truncate(filePath, size);
+            fileSystem.writeToFile(filePath, 0, "head".getBytes());
+            fileSystem.writeToFile(filePath, size / 2, "middle".getBytes());
+            fileSystem.writeToFile(filePath, size / 2 + 3 * 4096, "next".getBytes());
+            fileSystem.writeToFile(filePath, size - 4, "tail".getBytes());
+            fileSystem.punchHole(filePath, 0, 4096);
+
+            assertEquals(3 * 4096, fileSystem.getAllocatedSize(filePath));
+            assertTrue(fileSystem.getStatistics().getMetadataSize() < emptyMetadataSize + 1024);
+        }
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            assertEquals(size, fileSystem.getFileSize(filePath));
+            assertEquals(3 * 4096, fileSystem.getAllocatedSize(filePath));
+
+            try (final FileSystemInputStream input = fileSystem.openInputStream(filePath)) {
+                final byte[] bytes = new byte[6];
+                assertEquals(4, input.read(bytes, 0, 4));
+                assertArrayEquals(new byte[6], bytes);
+
+                input.seek(size / 2);
+                assertEquals(6, input.read(bytes, 0, 6));
+                assertEquals("middle", new String(bytes));
+
+                input.seek(size / 2 + 3 * 4096);
+                assertEquals(4, input.read(bytes, 0, 4));
+                assertEquals("next", new String(bytes, 0, 4));
+
+                input.seek(size - 4);
+                assertEquals(4, input.read(bytes, 0, 4));
+                assertEquals("tail", new String(bytes, 0, 4));
+            }
+
+            fileSystem.truncate(filePath, size / 2 + 4 * 4096);
+            assertEquals(2 * 4096, fileSystem.getAllocatedSize(filePath));
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldPunchHolesAndReuseTheFreedBlocks() throws Exception {
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            final String filePath = "/a.bin";
+            final byte[] data = new byte[4 * 4096];
+            Arrays.fill(data, (byte) 7);
+
+            fileSystem.createFile(filePath);
+            fileSystem.writeToFile(filePath, data);
+            fileSystem.punchHole(filePath, 100, 2 * 4096);
+
+            assertEquals(data.length, fileSystem.getFileSize(filePath));
+            assertEquals(3 * 4096, fileSystem.getAllocatedSize(filePath));
+
+            final byte[] contents = fileSystem.readFile(filePath);
+            for (int i = 0; i < contents.length; i++) {
+                assertEquals(i >= 100 && i < 100 + 2 * 4096 ? 0 : 7, contents[i]);
+            }
+
+            fileSystem.appendToFile(filePath, "tail".getBytes());
+            fileSystem.flush(filePath);
+            assertEquals("tail", new String(fileSystem.readFile(filePath), data.length, 4));
+            assertEquals(4 * 4096, fileSystem.getAllocatedSize(filePath));
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldDefragmentWithoutLosingData() throws Exception {
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            for (int i = 0; i < 6; i++) {
+                final byte[] contents = new byte[4096 + i];
+                Arrays.fill(contents, (byte) i);
+                fileSystem.createFile("/" + i);
+                fileSystem.writeToFile("/" + i, contents);
+            }
+
+            fileSystem.removeFile("/0");
+            fileSystem.removeFile("/2");
+            fileSystem.defragment();
+
+            for (int i : new int[]{1, 3, 4, 5}) {
+                final byte[] contents = new byte[4096 + i];
+                Arrays.fill(contents, (byte) i);
+                assertArrayEquals(contents, fileSystem.readFile("/" + i));
+            }
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldKeepPreallocatedFilesContiguous() throws Exception {
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            fileSystem.createFile("/a.log");
+            fileSystem.createFile("/b.log");
+            fileSystem.preallocate("/a.log", 8 * 4096);
+            fileSystem.setGrowthHint("/b.log", 8 * 4096);
+
+            assertEquals(8 * 4096, fileSystem.getReservedSize("/a.log"));
+            assertEquals(0, fileSystem.getAllocatedSize("/a.log"));
+
+            final byte[] block = new byte[4096];
+            for (int i = 0; i < 4; i++) {
+                fileSystem.appendToFile("/a.log", block);
+                fileSystem.appendToFile("/b.log", block);
+            }
+            fileSystem.flush();
+
+            assertEquals(4 * 4096, fileSystem.getReservedSize("/a.log"));
+            assertEquals(4 * 4096, fileSystem.getAllocatedSize("/a.log"));
+            assertEquals(4 * 4096, fileSystem.getReservedSize("/b.log"));
+
+            fileSystem.defragment();
+
+            assertEquals(0, fileSystem.getReservedSize("/a.log"));
+            assertEquals(0, fileSystem.getReservedSize("/b.log"));
+            assertArrayEquals(new byte[4 * 4096], fileSystem.readFile("/a.log"));
+            assertArrayEquals(new byte[4 * 4096], fileSystem.readFile("/b.log"));
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldReleaseReservedBlocksOnClose() throws Exception {
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            fileSystem.createFile("/a.log");
+            fileSystem.preallocate("/a.log", 100 * 4096);
+            fileSystem.appendToFile("/a.log", "abc".getBytes());
+        }
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            assertEquals(0, fileSystem.getReservedSize("/a.log"));
+            assertEquals("abc", new String(fileSystem.readFile("/a.log")));
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldBufferSmallAppendsUntilFlushed() throws Exception {
+
+        final FileSystemOptions options = new FileSystemOptions()
+                .withAppendBufferSize(1024 * 1024)
+                .withAppendFlushDelayMillis(60_000);
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME, options)) {
+
+            final String filePath = "/a.log";
+            fileSystem.createFile(filePath);
+
+            final StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                final String line = "line " + i + "\n";
+                fileSystem.appendToFile(filePath, line.getBytes());
+                expected.append(line);
+            }
+
+            assertEquals(expected.length(), fileSystem.getFileSize(filePath));
+            assertEquals(expected.toString(), new String(fileSystem.readFile(filePath)));
+            assertEquals(0, fileSystem.getAllocatedSize(filePath));
+
+            fileSystem.flush(filePath);
+            assertEquals((expected.length() + 4095) / 4096 * 4096, fileSystem.getAllocatedSize(filePath));
+
+            try (final FileSystem reader = new FileSystem(FILE_NAME)) {
+                assertEquals(expected.toString(), new String(reader.readFile(filePath)));
+            }
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldFlushABufferedAppendIntoOneRun() throws Exception {
+
+        final FileSystemOptions options = new FileSystemOptions()
+                .withAppendBufferSize(1024 * 1024)
+                .withAppendFlushDelayMillis(60_000);
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME, options)) {
+
+            for (int i = 0; i < 40; i++) {
+                fileSystem.createFile("/" + i);
+                fileSystem.writeToFile("/" + i, new byte[4096]);
+            }
+            for (int i = 0; i < 40; i += 2) {
+                fileSystem.removeFile("/" + i);
+            }
+
+            fileSystem.createFile("/a.log");
+            for (int i = 0; i < 64; i++) {
+                fileSystem.appendToFile("/a.log", new byte[1024]);
+            }
+            fileSystem.flush("/a.log");
+
+            assertEquals(64 * 1024, fileSystem.getAllocatedSize("/a.log"));
+            assertEquals(1L, fileSystem.getStatistics().getMaxRunsPerFile());
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldFlushBufferedAppendsOfAQuietWriter() throws Exception {
+
+        final FileSystemOptions options = new FileSystemOptions()
+                .withDurability(Durability.PERIODIC)
+                .withSyncIntervalMillis(50)
+                .withAppendFlushDelayMillis(100);
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME, options)) {
+
+            fileSystem.createFile("/a.log");
+            fileSystem.appendToFile("/a.log", "hello".getBytes());
+
+            final long deadline = System.currentTimeMillis() + 5000;
+            long storedSize = 0;
+            while (storedSize == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+                try (final FileSystem reader = new FileSystem(FILE_NAME, new FileSystemOptions().withReadOnly(true))) {
+                    storedSize = reader.getFileSize("/a.log");
+                }
+            }
+            assertEquals(5, storedSize);
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldExportBufferedAppendsAndKeepThemOnClose() throws Exception {
+
+        final Path exportDirectory = Files.createTempDirectory("export");
+        final FileSystemOptions options = new FileSystemOptions().withAppendFlushDelayMillis(60_000);
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME, options)) {
+
+            fileSystem.createFile("/f");
+            fileSystem.writeToFile("/f", "buffered ".getBytes());
+            fileSystem.appendToFile("/f", "hello".getBytes());
+
+            fileSystem.exportTree("/", exportDirectory);
+            assertEquals("buffered hello", Files.readString(exportDirectory.resolve("f")));
+        }
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            assertEquals("buffered hello", new String(fileSystem.readFile("/f")));
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldKeepConcurrentWritesInEveryDurabilityMode() throws Exception {
+
+        final int numberOfThreads = 8;
+        final int writesPerThread = 50;
+
+        for (final Durability durability : Durability.values()) {
+
+            final FileSystemOptions options = new FileSystemOptions()
+                    .withDurability(durability)
+                    .withSyncIntervalMillis(10);
+
+            // Every sync takes a millisecond like a real disk, so the commits that arrive meanwhile share the next one.
+            // The durable superblock must only ever refer to a generation that was published before a sync started
+            final AtomicInteger syncs = new AtomicInteger();
+            final AtomicLong syncedGeneration = new AtomicLong();
+            final List<String> misorderedSyncs = Collections.synchronizedList(new ArrayList<>());
+            final UnaryOperator<SyncWorker.SyncAction> countingSync = sync -> {
+                try {
+                    syncedGeneration.set(readSuperBlockGenerations()[1]);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+
+                return () -> {
+                    syncs.incrementAndGet();
+
+                    final long[] generations = readSuperBlockGenerations();
+                    if (generations[1] > syncedGeneration.get())
+                        misorderedSyncs.add(generations[1] + " is durable before it was synced");
+
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                    sync.run();
+                    syncedGeneration.accumulateAndGet(generations[0], Math::max);
+                };
+            };
+
+            try (final FileSystem fileSystem = new FileSystem(FILE_NAME, options, countingSync)) {
+
+                final List<Thread> threads = new ArrayList<>();
+                for (int t = 0; t < numberOfThreads; t++) {
+
+                    final String filePath = "/" + t + ".log";
+                    fileSystem.createFile(filePath);
+
+                    threads.add(new Thread(() -> {
+                        try {
+                            for (int i = 0; i < writesPerThread; i++) {
+                                fileSystem.appendToFile(filePath, "0123456789".getBytes());
+                            }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }));
+                }
+
+                threads.forEach(Thread::start);
+                for (final Thread thread : threads) {
+                    thread.join();
+                }
+            }
+
+            final int numberOfCommits = numberOfThreads + numberOfThreads * writesPerThread;
+            if (durability == Durability.NONE) {
+                assertEquals(0, syncs.get());
+            } else {
+                assertTrue(syncs.get() > 0);
+                assertTrue(syncs.get() < 2 * numberOfCommits,
+                        syncs.get() + " syncs for " + numberOfCommits + " commits");
+                assertEquals(List.of(), misorderedSyncs);
+            }
+
+            // The durable superblock has caught up with the published one on close
+            final long[] generations = readSuperBlockGenerations();
+            assertEquals(generations[0], generations[1]);
+
+            try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+                for (int t = 0; t < numberOfThreads; t++) {
+                    assertEquals(writesPerThread * 10, fileSystem.getFileSize("/" + t + ".log"));
+                }
+
+                fileSystem.deleteFileSystem();
+            }
+        }
+    }
+
+    @Test
+    public void shouldStripeBlocksAcrossContainerFiles() throws Exception {
+
+        final FileSystemOptions options = new FileSystemOptions()
+                .withStripeMembers(FILE_NAME + ".1", FILE_NAME + ".2");
+
+        final byte[] contents = new byte[10 * 4096 + 123];
+        new Random(42).nextBytes(contents);
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME, options)) {
+
+            fileSystem.createFile("/big.bin");
+            fileSystem.writeToFile("/big.bin", contents);
+        }
+
+        assertTrue(new File(FILE_NAME + ".1").length() > 3 * 4096);
+        assertTrue(new File(FILE_NAME + ".2").length() > 3 * 4096);
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME, options)) {
+
+            assertArrayEquals(contents, fileSystem.readFile("/big.bin"));
+
+            fileSystem.removeFile("/big.bin");
+            fileSystem.createFile("/small.bin");
+            fileSystem.writeToFile("/small.bin", "abc".getBytes());
+            fileSystem.defragment();
+
+            assertEquals("abc", new String(fileSystem.readFile("/small.bin")));
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldKeepTheMetadataInTheFirstContainerFileAndCheckTheSet() throws Exception {
+
+        final List<String> members = List.of(FILE_NAME + ".1", FILE_NAME + ".2");
+        final FileSystemOptions options = new FileSystemOptions().withStripeMembers(members.toArray(new String[0]));
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME, options)) {
+            fileSystem.createDirectory("/d");
+            for (int i = 0; i < 2000; i++) {
+                fileSystem.createFile("/d/file" + i);
+            }
+        }
+
+        // The other members only hold file blocks, so overwriting them leaves the tree intact
+        for (final String member : members) {
+            try (final RandomAccessFile memberFile = new RandomAccessFile(member, "rw")) {
+                final byte[] garbage = new byte[(int) memberFile.length() - 4096];
+                Arrays.fill(garbage, (byte) 0x5A);
+                memberFile.seek(4096);
+                memberFile.write(garbage);
+            }
+        }
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME, options)) {
+            assertEquals(2000, fileSystem.getDirectoryContents("/d").size());
+            fileSystem.defragment();
+        }
+
+        final String otherName = FILE_NAME + ".other";
+        final FileSystemOptions otherOptions = new FileSystemOptions()
+                .withStripeMembers(otherName + ".1", otherName + ".2");
+        try (final FileSystem otherFileSystem = new FileSystem(otherName, otherOptions)) {
+            otherFileSystem.createFile("/other.txt");
+        }
+        Files.copy(Path.of(otherName + ".2"), Path.of(FILE_NAME + ".2"), StandardCopyOption.REPLACE_EXISTING);
+
+        final RuntimeException failure = assertThrows(RuntimeException.class,
+                () -> new FileSystem(FILE_NAME, options).close());
+        assertEquals(FILE_NAME + ".2 belongs to another set of container files", failure.getMessage());
+
+        try (final FileSystem otherFileSystem = new FileSystem(otherName, otherOptions)) {
+            otherFileSystem.deleteFileSystem();
+        }
+        for (final String fileName : List.of(FILE_NAME, FILE_NAME + ".1", FILE_NAME + ".2")) {
+            Files.delete(Path.of(fileName));
+        }
+    }
+
+    @Test
+    public void shouldRejectAContainerFileOfAnotherFormat() throws Exception {
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+            fileSystem.createFile("/a.txt");
+        }
+
+        try (final RandomAccessFile container = new RandomAccessFile(FILE_NAME, "rw")) {
+            container.seek(Integer.BYTES);
+            container.writeInt(2);
+        }
+        RuntimeException failure = assertThrows(RuntimeException.class, () -> new FileSystem(FILE_NAME).close());
+        assertEquals(FILE_NAME + " has the format version 2 but only version 1 can be opened", failure.getMessage());
+
+        // The oldest containers start with the Java serialization of the whole header
+        try (final RandomAccessFile container = new RandomAccessFile(FILE_NAME, "rw")) {
+            container.seek(0);
+            container.writeInt(0xACED0005);
+        }
+        failure = assertThrows(RuntimeException.class, () -> new FileSystem(FILE_NAME).close());
+        assertTrue(failure.getMessage().startsWith(FILE_NAME + " was written by a version that serialized"));
+
+        Files.delete(Path.of(FILE_NAME));
+    }
+
+    @Test
+    public void shouldKeepWorkingAfterAReaderIsInterrupted() throws Exception {
+
+        final FileSystemOptions options = new FileSystemOptions()
+                .withStripeMembers(FILE_NAME + ".1");
+
+        final byte[] contents = new byte[64 * 4096];
+        new Random(3).nextBytes(contents);
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME, options)) {
+
+            fileSystem.createFile("/a.bin");
+            fileSystem.writeToFile("/a.bin", contents);
+
+            final Throwable[] failure = new Throwable[1];
+            final Thread reader = new Thread(() -> {
+                Thread.currentThread().interrupt();
+                try {
+                    fileSystem.readFile("/a.bin");
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+            });
+            reader.start();
+            reader.join();
+
+            assertTrue(failure[0] instanceof ClosedByInterruptException);
+
+            assertArrayEquals(contents, fileSystem.readFile("/a.bin"));
+            fileSystem.createFile("/b.bin");
+            fileSystem.writeToFile("/b.bin", contents);
+            assertArrayEquals(contents, fileSystem.readFile("/b.bin"));
+        }
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME, options)) {
+
+            assertArrayEquals(contents, fileSystem.readFile("/b.bin"));
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldShareTheContainerWithReadOnlyFileSystems() throws Exception {
+
+        final FileSystemOptions readOnly = new FileSystemOptions().withReadOnly(true);
+
+        try (final FileSystem writer = new FileSystem(FILE_NAME)) {
+
+            writer.createFile("/a.txt");
+            writer.writeToFile("/a.txt", "first".getBytes());
+
+            try (final FileSystem reader = new FileSystem(FILE_NAME, readOnly)) {
+
+                assertEquals("first", new String(reader.readFile("/a.txt")));
+                assertThrows(RuntimeException.class, () -> reader.createFile("/b.txt"));
+                assertFalse(reader.refresh());
+
+                writer.createFile("/b.txt");
+                writer.writeToFile("/b.txt", new byte[3 * 4096]);
+                writer.writeToFile("/a.txt", "second".getBytes());
+
+                assertTrue(reader.refresh());
+                assertEquals("second", new String(reader.readFile("/a.txt")));
+                assertArrayEquals(new byte[3 * 4096], reader.readFile("/b.txt"));
+                assertFalse(reader.refresh());
+            }
+
+            writer.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldRereadFromTheNewerHeaderWhenTheWriterReusedTheBlocks() throws Exception {
+
+        final byte[] original = new byte[8 * 4096];
+        Arrays.fill(original, (byte) 'O');
+        final byte[] replacement = new byte[8 * 4096];
+        Arrays.fill(replacement, (byte) 'R');
+        final byte[] other = new byte[8 * 4096];
+        Arrays.fill(other, (byte) 'S');
+
+        try (final FileSystem writer = new FileSystem(FILE_NAME)) {
+
+            writer.createFile("/a.bin");
+            writer.writeToFile("/a.bin", original);
+
+            try (final FileSystem reader = new FileSystem(FILE_NAME, new FileSystemOptions().withReadOnly(true))) {
+
+                final FileSystemInputStream input = reader.openInputStream("/a.bin");
+                assertEquals((int) 'O', input.read());
+
+                writer.writeToFile("/a.bin", replacement);
+                writer.createFile("/b.bin");
+                writer.writeToFile("/b.bin", other);
+
+                assertArrayEquals(replacement, reader.readFile("/a.bin"));
+                assertEquals((int) 'R', input.read());
+
+                writer.removeFile("/b.bin");
+                writer.defragment();
+                assertArrayEquals(replacement, reader.readFile("/a.bin"));
+            }
+
+            writer.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldEvenOutTheGenerationLeftByAnInterruptedFlush() throws Exception {
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+            fileSystem.createFile("/a.txt");
+            fileSystem.writeToFile("/a.txt", "contents".getBytes());
+        }
+
+        try (final RandomAccessFile container = new RandomAccessFile(FILE_NAME, "rw")) {
+            container.seek(3 * Integer.BYTES);
+            final long generation = container.readLong();
+            container.seek(3 * Integer.BYTES);
+            container.writeLong(generation + 1);
+        }
+
+        try (final FileSystem writer = new FileSystem(FILE_NAME)) {
+
+            final long start = System.nanoTime();
+            try (final FileSystem reader = new FileSystem(FILE_NAME, new FileSystemOptions().withReadOnly(true))) {
+                assertEquals("contents", new String(reader.readFile("/a.txt")));
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            assertEquals(0, writer.getGeneration() % 2);
+
+            writer.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldRefreshWhileTheWriterIsFlushing() throws Exception {
+
+        final int numberOfFiles = 300;
+
+        try (final FileSystem writer = new FileSystem(FILE_NAME)) {
+
+            writer.createDirectory("/d");
+
+            try (final FileSystem reader = new FileSystem(FILE_NAME, new FileSystemOptions().withReadOnly(true))) {
+
+                final Thread writerThread = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < numberOfFiles; i++) {
+                            writer.createFile("/d/file" + i);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                writerThread.start();
+
+                while (writerThread.isAlive()) {
+                    reader.refresh();
+                    assertTrue(reader.getDirectoryContents("/d").size() <= numberOfFiles);
+                }
+                writerThread.join();
+
+                reader.refresh();
+                assertEquals(numberOfFiles, reader.getDirectoryContents("/d").size());
+            }
+
+            writer.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldFindNodesByGlobAndPrefix() throws Exception {
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            fileSystem.createDirectory("/usr");
+            fileSystem.createDirectory("/usr/tmp");
+            fileSystem.createFile("/usr/a.tmp");
+            fileSystem.createFile("/usr/tmp/b.tmp");
+            fileSystem.createFile("/usr/tmp/b.txt");
+            fileSystem.createFile("/c.tmp");
+
+            fileSystem.rename("/c.tmp", "c.txt");
+            fileSystem.move("/usr/tmp/b.txt", "/usr");
+        }
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            assertEquals(Set.of("/usr/a.tmp", "/usr/tmp/b.tmp"), fileSystem.find("/", "*.tmp").collect(toSet()));
+            assertEquals(Set.of("/usr/tmp/b.tmp"), fileSystem.find("/usr/tmp", "*.tmp").collect(toSet()));
+            assertEquals(Set.of("/usr/tmp"), fileSystem.find("/", "tmp").collect(toSet()));
+            assertEquals(Set.of("/usr/b.txt", "/c.txt"), fileSystem.find("/", "?.txt").collect(toSet()));
+            assertEquals(Set.of("/usr/tmp/b.tmp", "/usr/b.txt"), fileSystem.find("/", "b").collect(toSet()));
+
+            fileSystem.removeFile("/usr/a.tmp");
+            assertEquals(Set.of("/usr/tmp/b.tmp"), fileSystem.find("/", "*.tmp").collect(toSet()));
+
+            fileSystem.createFile("/d.tmp");
+            for (final String path : (Iterable<String>) fileSystem.find("/", "*.tmp")::iterator) {
+                fileSystem.removeFile(path);
+            }
+            assertEquals(Set.of(), fileSystem.find("/", "*.tmp").collect(toSet()));
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldTransferFileContentsToAndFromChannels() throws Exception {
+
+        final byte[] contents = new byte[3 * 1024 * 1024 + 17];
+        new Random(7).nextBytes(contents);
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            fileSystem.createFile("/artifact.bin");
+            fileSystem.transferFrom(Channels.newChannel(new ByteArrayInputStream(contents)), "/artifact.bin");
+
+            assertEquals(contents.length, fileSystem.getFileSize("/artifact.bin"));
+            assertArrayEquals(contents, fileSystem.readFile("/artifact.bin"));
+
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            fileSystem.transferTo("/artifact.bin", Channels.newChannel(output));
+            assertArrayEquals(contents, output.toByteArray());
+
+            fileSystem.createFile("/sparse.bin");
+            fileSystem.truncate("/sparse.bin", 3 * 4096);
+            fileSystem.writeToFile("/sparse.bin", 4096, "data".getBytes());
+
+            final ByteArrayOutputStream sparseOutput = new ByteArrayOutputStream();
+            fileSystem.transferTo("/sparse.bin", Channels.newChannel(sparseOutput));
+            assertArrayEquals(fileSystem.readFile("/sparse.bin"), sparseOutput.toByteArray());
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldTransferToASlowTargetWithoutBlockingTheFileSystem() throws Exception {
+
+        final byte[] contents = new byte[256 * 1024];
+        new Random(11).nextBytes(contents);
+
+        final CountDownLatch transferStarted = new CountDownLatch(1);
+        final CountDownLatch writerDone = new CountDownLatch(1);
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final boolean[] writerFinishedFirst = new boolean[1];
+
+        // Accepts nothing on every other call, like a non-blocking socket with a full send buffer
+        final WritableByteChannel slowTarget = new WritableByteChannel() {
+            private boolean acceptedLast;
+
+            @Override
+            public int write(final ByteBuffer source) {
+                transferStarted.countDown();
+                try {
+                    writerFinishedFirst[0] = writerDone.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+
+                acceptedLast = !acceptedLast;
+                if (!acceptedLast) return 0;
+
+                final byte[] chunk = new byte[Math.min(source.remaining(), 1000)];
+                source.get(chunk);
+                received.write(chunk, 0, chunk.length);
+                return chunk.length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            fileSystem.createFile("/artifact.bin");
+            fileSystem.writeToFile("/artifact.bin", contents);
+
+            final Thread transfer = new Thread(() -> {
+                try {
+                    fileSystem.transferTo("/artifact.bin", slowTarget);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            transfer.start();
+            transferStarted.await();
+
+            fileSystem.writeToFile("/artifact.bin", "replaced".getBytes());
+            fileSystem.createFile("/other.bin");
+            fileSystem.writeToFile("/other.bin", new byte[contents.length]);
+            writerDone.countDown();
+            transfer.join();
+
+            assertTrue(writerFinishedFirst[0]);
+            assertArrayEquals(contents, received.toByteArray());
+            assertEquals("replaced", new String(fileSystem.readFile("/artifact.bin")));
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldReceiveFromAStallingSourceAndRollBackAFailedTransfer() throws Exception {
+
+        final byte[] contents = new byte[10000];
+        new Random(13).nextBytes(contents);
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            fileSystem.createFile("/stalled.bin");
+            fileSystem.transferFrom(new StallingChannel(contents, Integer.MAX_VALUE), "/stalled.bin");
+            assertArrayEquals(contents, fileSystem.readFile("/stalled.bin"));
+
+            fileSystem.createFile("/failed.bin");
+            fileSystem.writeToFile("/failed.bin", "previous".getBytes());
+            final byte[] large = new byte[3 * 1024 * 1024];
+            final IOException failure = assertThrows(IOException.class,
+                    () -> fileSystem.transferFrom(new StallingChannel(large, 2 * 1024 * 1024), "/failed.bin"));
+            assertEquals("The source failed", failure.getMessage());
+
+            fileSystem.createFile("/after.bin");
+            fileSystem.writeToFile("/after.bin", contents);
+            fileSystem.defragment();
+
+            assertArrayEquals(contents, fileSystem.readFile("/stalled.bin"));
+            assertArrayEquals(contents, fileSystem.readFile("/after.bin"));
+            assertEquals("previous", new String(fileSystem.readFile("/failed.bin")));
+            assertTrue(new File(FILE_NAME).length() < 64 * 4096);
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    // Has nothing to read on every other call, like a non-blocking socket, and fails after a given number of bytes
+    private static final class StallingChannel implements ReadableByteChannel {
+
+        private final byte[] contents;
+        private final int failAt;
+        private int position;
+        private boolean stalledLast;
+
+        StallingChannel(final byte[] contents, final int failAt) {
+            this.contents = contents;
+            this.failAt = failAt;
+        }
+
+        @Override
+        public int read(final ByteBuffer destination) throws IOException {
+
+            if (position >= failAt) throw new IOException("The source failed");
+            if (position == contents.length) return -1;
+
+            stalledLast = !stalledLast;
+            if (stalledLast) return 0;
+
+            final int count = Math.min(Math.min(destination.remaining(), 1000), contents.length - position);
+            destination.put(contents, position, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void shouldReportFragmentationStatistics() throws Exception {
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME, new FileSystemOptions().withAppendBufferSize(0))) {
+
+            fileSystem.createFile("/a.txt");
+            fileSystem.createFile("/b.txt");
+            fileSystem.createFile("/c.txt");
+            fileSystem.writeToFile("/a.txt", new byte[2 * 4096]);
+            fileSystem.writeToFile("/b.txt", new byte[3 * 4096]);
+            fileSystem.writeToFile("/c.txt", new byte[4096]);
+            fileSystem.appendToFile("/a.txt", new byte[4096]);
+            fileSystem.removeFile("/b.txt");
+
+            final FileSystemStatistics statistics = fileSystem.getStatistics();
+
+            assertEquals(2, statistics.getFileCount());
+            assertEquals(1, statistics.getFragmentedFileCount());
+            assertEquals(3, statistics.getRunCount());
+            assertEquals(2, statistics.getMaxRunsPerFile());
+            assertEquals(3, statistics.getFreeBlocks());
+            assertEquals(3, statistics.getLargestFreeRun());
+            assertEquals(1, statistics.getFreeRunsByLength().get(2L));
+            assertTrue(statistics.getMetadataSize() > 0);
+
+            fileSystem.defragment();
+
+            assertEquals(0, fileSystem.getStatistics().getFreeBlocks());
+            assertEquals(statistics.getUsedBlocks(), fileSystem.getStatistics().getContainerBlocks());
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldRunTheAgingSimulatorAndCleanUp() throws Exception {
+
+        final Map<String, String> arguments = new HashMap<>();
+        arguments.put("operations", "300");
+        arguments.put("reportInterval", "100");
+        arguments.put("directories", "2");
+        arguments.put("maxFiles", "20");
+        arguments.put("maxWriteSize", "10000");
+        arguments.put("readSample", "5");
+        arguments.put("container", FILE_NAME);
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertEquals(300, new AgingSimulator(arguments, new PrintStream(output)).run());
+
+        assertTrue(output.toString().contains("[after defragment]"));
+        assertFalse(new File(FILE_NAME).exists());
+    }
+
+    @Test
+    public void shouldReplicateChangesSinceAGeneration() throws Exception {
+
+        final byte[] large = new byte[64 * 4096];
+        new Random(3).nextBytes(large);
+
+        try (final FileSystem source = new FileSystem(FILE_NAME);
+             final FileSystem replica = new FileSystem(FILE_NAME + ".replica")) {
+
+            source.createDirectory("/logs");
+            source.createFile("/logs/a.log");
+            source.createFile("/large.bin");
+            source.appendToFile("/logs/a.log", "first".getBytes());
+            source.writeToFile("/large.bin", large);
+
+            final ByteArrayOutputStream full = new ByteArrayOutputStream();
+            final long generation = source.exportChanges(0, full);
+            replica.applyChanges(new ByteArrayInputStream(full.toByteArray()));
+
+            assertEquals(generation, replica.getGeneration());
+            assertArrayEquals(large, replica.readFile("/large.bin"));
+
+            source.appendToFile("/logs/a.log", " second".getBytes());
+            source.writeToFile("/large.bin", 4096, "changed".getBytes());
+            source.createFile("/logs/b.log");
+            source.writeToFile("/logs/b.log", "new".getBytes());
+
+            final ByteArrayOutputStream delta = new ByteArrayOutputStream();
+            final long nextGeneration = source.exportChanges(generation, delta);
+            assertTrue(delta.size() < full.size() / 4);
+
+            replica.applyChanges(new ByteArrayInputStream(delta.toByteArray()));
+
+            assertEquals(nextGeneration, replica.getGeneration());
+            assertArrayEquals("first second".getBytes(), replica.readFile("/logs/a.log"));
+            assertArrayEquals("new".getBytes(), replica.readFile("/logs/b.log"));
+            assertArrayEquals(source.readFile("/large.bin"), replica.readFile("/large.bin"));
+
+            replica.removeFile("/logs/b.log");
+            source.removeFile("/logs/a.log");
+
+            final ByteArrayOutputStream stale = new ByteArrayOutputStream();
+            source.exportChanges(nextGeneration, stale);
+            assertThrows(RuntimeException.class,
+                    () -> replica.applyChanges(new ByteArrayInputStream(stale.toByteArray())));
+
+            final ByteArrayOutputStream resync = new ByteArrayOutputStream();
+            source.exportChanges(0, resync);
+            replica.applyChanges(new ByteArrayInputStream(resync.toByteArray()));
+
+            assertEquals(Set.of("b.log"), replica.getDirectoryContents("/logs"));
+            assertArrayEquals(source.readFile("/large.bin"), replica.readFile("/large.bin"));
+
+            replica.deleteFileSystem();
+            source.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldOnlyExportTheLoggedChangesOfALargeTree() throws Exception {
+
+        try (final FileSystem source = new FileSystem(FILE_NAME)) {
+
+            source.createDirectory("/files");
+            for (int i = 0; i < 2000; i++) {
+                source.createFile("/files/" + i + ".txt");
+                source.writeToFile("/files/" + i + ".txt", ("file " + i).getBytes());
+            }
+
+            final ByteArrayOutputStream full = new ByteArrayOutputStream();
+            long generation = source.exportChanges(0, full);
+            try (final FileSystem replica = new FileSystem(FILE_NAME + ".replica")) {
+                replica.applyChanges(new ByteArrayInputStream(full.toByteArray()));
+            }
+
+            source.appendToFile("/files/7.txt", "!".getBytes());
+
+            final ByteArrayOutputStream delta = new ByteArrayOutputStream();
+            long nextGeneration = source.exportChanges(generation, delta);
+            assertTrue(delta.size() < 2 * 4096);
+
+            try (final FileSystem replica = new FileSystem(FILE_NAME + ".replica")) {
+                replica.applyChanges(new ByteArrayInputStream(delta.toByteArray()));
+            }
+            generation = nextGeneration;
+
+            // The nodes that the next delta refers to keep their ids in the reopened replica
+            source.removeFile("/files/3.txt");
+            source.rename("/files/5.txt", "3.txt");
+            source.createFile("/files/new.txt");
+            source.writeToFile("/files/new.txt", "new".getBytes());
+
+            delta.reset();
+            nextGeneration = source.exportChanges(generation, delta);
+            assertTrue(delta.size() < 3 * 4096);
+
+            try (final FileSystem replica = new FileSystem(FILE_NAME + ".replica")) {
+                replica.applyChanges(new ByteArrayInputStream(delta.toByteArray()));
+
+                assertEquals(nextGeneration, replica.getGeneration());
+                assertEquals(source.getDirectoryContents("/files"), replica.getDirectoryContents("/files"));
+                assertArrayEquals("file 7!".getBytes(), replica.readFile("/files/7.txt"));
+                assertArrayEquals("file 5".getBytes(), replica.readFile("/files/3.txt"));
+                assertArrayEquals("new".getBytes(), replica.readFile("/files/new.txt"));
+                assertArrayEquals("file 1999".getBytes(), replica.readFile("/files/1999.txt"));
+
+                replica.deleteFileSystem();
+            }
+
+            source.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldReadAheadOnSequentialStreams() throws Exception {
+
+        final byte[] contents = new byte[2 * 1024 * 1024 + 100];
+        new Random(11).nextBytes(contents);
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            fileSystem.createFile("/stream.bin");
+            fileSystem.writeToFile("/stream.bin", contents);
+            fileSystem.punchHole("/stream.bin", 8192, 4096);
+            fileSystem.appendToFile("/stream.bin", "tail".getBytes());
+
+            final byte[] expected = fileSystem.readFile("/stream.bin");
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+            try (final FileSystemInputStream input = fileSystem.openInputStream("/stream.bin", 32)) {
+
+                final byte[] buffer = new byte[10000];
+                for (int read; (read = input.read(buffer)) >= 0; ) {
+                    output.write(buffer, 0, read);
+                }
+
+                assertArrayEquals(expected, output.toByteArray());
+                assertEquals(32, input.getReadAheadWindow());
+
+                input.seek(4096);
+                input.read(buffer);
+                assertEquals(0, input.getReadAheadWindow());
+
+                input.read(buffer);
+                assertEquals(4, input.getReadAheadWindow());
+                assertEquals(4096 + 2 * buffer.length, input.getPosition());
+            }
+
+            try (final FileSystemInputStream input = fileSystem.openInputStream("/stream.bin", 0)) {
+
+                final byte[] buffer = new byte[expected.length];
+                assertEquals(expected.length, input.readNBytes(buffer, 0, buffer.length));
+                assertArrayEquals(expected, buffer);
+                assertEquals(0, input.getReadAheadWindow());
+                assertEquals(-1, input.read());
+            }
+
+            final FileSystemInputStream input = fileSystem.openInputStream("/stream.bin");
+            fileSystem.removeFile("/stream.bin");
+            assertThrows(IOException.class, input::read);
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldNotKeepTheChecksumOfAFileBlockReusedForMetadata() throws Exception {
+
+        final byte[] contents = new byte[4096];
+        new Random(17).nextBytes(contents);
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            fileSystem.createFile("/low");
+            fileSystem.createFile("/x");
+            fileSystem.createFile("/hi");
+            fileSystem.writeToFile("/low", contents);
+            fileSystem.writeToFile("/x", contents);
+            fileSystem.writeToFile("/hi", contents);
+            fileSystem.removeFile("/x");
+
+            for (int i = 0; i < 3000; i++) {
+                fileSystem.createFile("/file" + i);
+            }
+        }
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+            fileSystem.removeFile("/low");
+        }
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            fileSystem.defragment();
+
+            assertArrayEquals(contents, fileSystem.readFile("/hi"));
+            assertEquals(3001, fileSystem.getDirectoryContents("/").size());
+            assertTrue(fileSystem.scrub().isClean());
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldDetectCorruptedBlocksOnReadAndScrub() throws Exception {
+
+        final byte[] healthy = new byte[20 * 4096];
+        new Random(5).nextBytes(healthy);
+        final byte[] marker = "corrupt me please".getBytes();
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            fileSystem.createDirectory("/data");
+            fileSystem.createFile("/data/healthy.bin");
+            fileSystem.createFile("/data/victim.txt");
+            fileSystem.writeToFile("/data/healthy.bin", healthy);
+            fileSystem.writeToFile("/data/victim.txt", marker);
+            fileSystem.appendToFile("/data/victim.txt", " and more".getBytes());
+            fileSystem.flush();
+
+            assertTrue(fileSystem.scrub().isClean());
+            assertEquals(21, fileSystem.scrub(1024 * 1024 * 1024).getScannedBlocks());
+        }
+
+        final byte[] container = fileToByteArray(new File(FILE_NAME));
+        int markerPosition = -1;
+        for (int i = 0; markerPosition < 0 && i <= container.length - marker.length; i++) {
+            if (Arrays.equals(container, i, i + marker.length, marker, 0, marker.length)) markerPosition = i;
+        }
+        container[markerPosition] ^= 0x20;
+        Files.write(Path.of(FILE_NAME), container);
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            assertThrows(IOException.class, () -> fileSystem.readFile("/data/victim.txt"));
+            assertArrayEquals(healthy, fileSystem.readFile("/data/healthy.bin"));
+
+            final ScrubReport report = fileSystem.scrub();
+            assertEquals(1, report.getCorruptedBlocks().size());
+            assertEquals(Set.of("/data/victim.txt"), report.getAffectedFiles());
+
+            fileSystem.writeToFile("/data/victim.txt", marker);
+            assertArrayEquals(marker, fileSystem.readFile("/data/victim.txt"));
+            assertTrue(fileSystem.scrub().isClean());
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    @Test
+    public void shouldKeepChecksumsOfPartialWritesAndImportsWithoutReadingBack() throws Exception {
+
+        final byte[] expected = new byte[10 * 4096 + 123];
+        new Random(7).nextBytes(expected);
+        final Path hostDirectory = Files.createTempDirectory("import");
+        Files.write(hostDirectory.resolve("source.bin"), expected);
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            fileSystem.createFile("/sparse.bin");
+            fileSystem.writeToFile("/sparse.bin", 5000, "middle".getBytes());
+            fileSystem.createFile("/patched.bin");
+            fileSystem.writeToFile("/patched.bin", expected);
+            fileSystem.importTree(hostDirectory, "/");
+
+            final Random random = new Random(8);
+            final byte[] buffer = new byte[100];
+            for (int i = 0; i < 200; i++) {
+
+                final int position = random.nextInt(expected.length - buffer.length);
+                random.nextBytes(buffer);
+                System.arraycopy(buffer, 0, expected, position, buffer.length);
+                fileSystem.writeToFile("/patched.bin", position, buffer);
+
+                try (final FileSystemInputStream input = fileSystem.openInputStream("/patched.bin", 0)) {
+                    input.seek(position);
+                    assertEquals(buffer.length, input.readNBytes(buffer, 0, buffer.length));
+                    assertArrayEquals(Arrays.copyOfRange(expected, position, position + buffer.length), buffer);
+                }
+            }
+
+            assertTrue(fileSystem.scrub().isClean());
+        }
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME)) {
+
+            assertArrayEquals(expected, fileSystem.readFile("/patched.bin"));
+            assertArrayEquals(Files.readAllBytes(hostDirectory.resolve("source.bin")),
+                    fileSystem.readFile("/source.bin"));
+            assertEquals("middle", new String(fileSystem.readFile("/sparse.bin"), 5000, 6));
+            assertTrue(fileSystem.scrub().isClean());
+
+            fileSystem.deleteFileSystem();
+        } finally {
+            Files.delete(hostDirectory.resolve("source.bin"));
+            Files.delete(hostDirectory);
+        }
+    }
+
+    @Test
+    public void shouldReadManyFilesInOneBatch() throws Exception {
+
+        final FileSystemOptions options = new FileSystemOptions().withStripeMembers(FILE_NAME + ".1");
+        final Random random = new Random(13);
+
+        try (final FileSystem fileSystem = new FileSystem(FILE_NAME, options)) {
+
+            fileSystem.createDirectory("/inputs");
+            final List<String> paths = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                final String path = "/inputs/file" + i;
+                final byte[] contents = new byte[random.nextInt(3 * 4096)];
+                random.nextBytes(contents);
+
+                fileSystem.createFile(path);
+                fileSystem.writeToFile(path, contents);
+                paths.add(path);
+            }
+
+            for (int i = 0; i < 200; i += 3) {
+                fileSystem.appendToFile(paths.get(i), new byte[]{(byte) i});
+            }
+            fileSystem.truncate(paths.get(7), 5 * 4096);
+            fileSystem.writeToFile(paths.get(7), 4 * 4096, "end".getBytes());
+            fileSystem.removeFile(paths.remove(10));
+
+            final List<String> requested = new ArrayList<>(paths);
+            requested.add(paths.get(0));
+            Collections.shuffle(requested, random);
+
+            final Map<String, byte[]> contents = fileSystem.readFiles(requested);
+
+            assertEquals(paths.size(), contents.size());
+            for (final String path : paths) {
+                assertArrayEquals(fileSystem.readFile(path), contents.get(path));
+            }
+
+            fileSystem.deleteFileSystem();
+        }
+    }
+
+    // The generation of the superblock that the readers use, and of the one that was written after a sync
+    private static long[] readSuperBlockGenerations() throws IOException {
+        try (final RandomAccessFile container = new RandomAccessFile(FILE_NAME, "r")) {
+            container.seek(3 * Integer.BYTES);
+            final long publishedGeneration = container.readLong();
+            container.seek(2048);
+            return new long[]{publishedGeneration, container.readLong()};
+        }
+    }
+
     public static byte[] fileToByteArray(File file) throws IOException {
         return Files.readAllBytes(file.toPath());
     }